@@ -0,0 +1,48 @@
+package com.imperative;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs each kernel on a fresh Evaluator; the kernel is lexed and parsed
+ * once up front.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EvaluatorBenchmark {
+    @Param({"recursion", "loops", "records", "arrays", "arithmetic"})
+    public String kernel;
+
+    private List<Stmt> statements;
+    private Token result;
+
+    @Setup
+    public void setup() {
+        List<Token> tokens = new Lexer(Kernels.source(kernel)).scanTokens();
+        statements = new Parser(tokens, new Evaluator()).parse();
+        result = new Token(TokenType.IDENTIFIER, "result", null, 0);
+    }
+
+    @Benchmark
+    public Object execute() {
+        Evaluator evaluator = new Evaluator();
+        evaluator.interpret(statements);
+        return evaluator.globals.get(result);
+    }
+}
@@ -0,0 +1,77 @@
+package com.imperative;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Scaling run for the front end and the evaluator on generated programs.
+ * Sizes grow fourfold from 1 KiB up to the limit given in bytes (64 MiB by
+ * default). Every size is lexed and parsed both sequentially and in
+ * parallel, the two results are checked against each other, and programs
+ * up to 1 MiB are also executed. Large limits need a large heap, roughly
+ * twenty times the source size.
+ *
+ * <pre>java -Xmx16g -cp target/benchmarks.jar com.imperative.FrontEndStress 536870912</pre>
+ */
+public class FrontEndStress {
+    private static final long EVALUATE_LIMIT = 1 << 20;
+
+    public static void main(String[] args) {
+        long limit = args.length > 0 ? Long.parseLong(args[0]) : 1 << 26;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+
+        System.out.printf("%12s %10s %10s %10s %12s %12s %10s%n", "bytes", "tokens",
+                "lex MB/s", "plex MB/s", "parse tok/s", "pparse tok/s", "eval ms");
+
+        for (long size = 1024; size <= limit; size *= 4) {
+            String source = new ProgramGenerator(seed, new ProgramGenerator.Shape()).generate((int) size);
+
+            long start = System.nanoTime();
+            List<Token> tokens = new Lexer(source).scanTokens();
+            long lexed = System.nanoTime();
+            List<Token> parallelTokens = Lexer.scanTokensParallel(source, pool);
+            long parallelLexed = System.nanoTime();
+            check(tokens.size() == parallelTokens.size(), size, "token counts differ");
+
+            List<Stmt> statements = new Parser(tokens, new Evaluator()).parse();
+            long parsed = System.nanoTime();
+            List<Stmt> parallelStatements = new Parser(tokens, new Evaluator()).parseParallel(pool);
+            long parallelParsed = System.nanoTime();
+            check(statements.size() == parallelStatements.size(), size, "statement counts differ");
+            check(!statements.contains(null), size, "parse errors");
+
+            String evaluated = "-";
+            if (size <= EVALUATE_LIMIT) {
+                PrintStream out = System.out;
+                System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+                long evaluateStart = System.nanoTime();
+                try {
+                    new Evaluator().interpret(statements);
+                } finally {
+                    System.setOut(out);
+                }
+                evaluated = Long.toString((System.nanoTime() - evaluateStart) / 1_000_000);
+            }
+
+            System.out.printf("%12d %10d %10.1f %10.1f %12.0f %12.0f %10s%n", source.length(), tokens.size(),
+                    rate(source.length(), start, lexed) / 1e6,
+                    rate(source.length(), lexed, parallelLexed) / 1e6,
+                    rate(tokens.size(), lexed, parsed),
+                    rate(tokens.size(), parsed, parallelParsed),
+                    evaluated);
+        }
+    }
+
+    private static double rate(long amount, long from, long to) {
+        return amount * 1e9 / Math.max(1, to - from);
+    }
+
+    private static void check(boolean condition, long size, String message) {
+        if (!condition) {
+            throw new IllegalStateException(message + " at " + size + " bytes");
+        }
+    }
+}
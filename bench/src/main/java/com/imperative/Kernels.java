@@ -0,0 +1,58 @@
+package com.imperative;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Representative programs for the benchmarks. Every kernel leaves its
+ * answer in a global named {@code result} so the work cannot be skipped.
+ */
+final class Kernels {
+    static final Map<String, String> sources = new LinkedHashMap<>();
+
+    static {
+        sources.put("recursion", ""
+                + "routine fib(n: integer): integer is\n"
+                + "    if n < 2 then return n; else return fib(n - 1) + fib(n - 2); end\n"
+                + "end\n"
+                + "var result is fib(18);\n");
+        sources.put("loops", ""
+                + "var result is 0;\n"
+                + "for i in 0..100 loop\n"
+                + "    for j in 0..100 loop\n"
+                + "        result := result + i * j - j;\n"
+                + "    end\n"
+                + "end\n");
+        sources.put("records", ""
+                + "record Point\n"
+                + "    var x is 3;\n"
+                + "    var y is 4;\n"
+                + "end\n"
+                + "var result is 0;\n"
+                + "for i in 0..10000 loop\n"
+                + "    result := result + Point.x * Point.y;\n"
+                + "end\n");
+        sources.put("arrays", ""
+                + "array values [1, 2, 3, 4, 5, 6, 7, 8];\n"
+                + "var result is 0;\n"
+                + "for i in 0..10000 loop\n"
+                + "    result := result + values[1] + values[4] + values[8];\n"
+                + "end\n");
+        sources.put("arithmetic", ""
+                + "var result is 0.0;\n"
+                + "for i in 0..10000 loop\n"
+                + "    result := result + i * 0.5 - i / 3 + 1.25;\n"
+                + "end\n");
+    }
+
+    private Kernels() {
+    }
+
+    static String source(String kernel) {
+        String source = sources.get(kernel);
+        if (source == null) {
+            throw new IllegalArgumentException("Unknown kernel " + kernel);
+        }
+        return source;
+    }
+}
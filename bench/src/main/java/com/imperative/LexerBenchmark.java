@@ -0,0 +1,64 @@
+package com.imperative;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lexer throughput over a generated program of {@code size} bytes. Besides
+ * scans per second, the {@code tokens} and {@code bytes} counters report
+ * tokens/s and bytes/s.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LexerBenchmark {
+    @Param({"65536", "1048576", "16777216"})
+    public int size;
+
+    @Param("1")
+    public long seed;
+
+    private String source;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long tokens;
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            tokens = 0;
+            bytes = 0;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        source = new ProgramGenerator(seed, new ProgramGenerator.Shape()).generate(size);
+    }
+
+    @Benchmark
+    public int scanTokens(Counters counters) {
+        int count = new Lexer(source).scanTokens().size();
+        counters.tokens += count;
+        counters.bytes += source.length();
+        return count;
+    }
+}
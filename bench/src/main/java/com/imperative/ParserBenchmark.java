@@ -0,0 +1,62 @@
+package com.imperative;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parser throughput over the pre-lexed tokens of a generated program of
+ * {@code size} bytes; the {@code tokens} counter reports tokens/s.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+    @Param({"65536", "1048576", "16777216"})
+    public int size;
+
+    @Param("1")
+    public long seed;
+
+    private List<Token> tokens;
+    private Evaluator evaluator;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long tokens;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            tokens = 0;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        tokens = new Lexer(new ProgramGenerator(seed, new ProgramGenerator.Shape()).generate(size)).scanTokens();
+        evaluator = new Evaluator();
+    }
+
+    @Benchmark
+    public Object parse(Counters counters) {
+        counters.tokens += tokens.size();
+        return new Parser(tokens, evaluator).parse();
+    }
+}
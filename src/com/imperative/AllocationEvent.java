@@ -0,0 +1,26 @@
+package com.imperative;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("com.imperative.Allocation")
+@Label("Record or Array Allocation")
+@Category({"Imperative", "Execution"})
+@Description("A record or array created by a script declaration")
+@StackTrace(false)
+class AllocationEvent extends Event {
+    @Label("Kind")
+    @Description("'record' or 'array'")
+    String kind;
+
+    @Label("Name")
+    String name;
+
+    @Label("Size")
+    @Description("Number of record fields or array members")
+    int size;
+}
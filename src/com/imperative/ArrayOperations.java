@@ -0,0 +1,272 @@
+package com.imperative;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
+
+/**
+ * The bulk array routines of the library. An array is the list of its
+ * member expressions, so each one first evaluates the members; when they
+ * are all integers or all reals they are copied into an int[] or double[]
+ * and worked on in bulk, on all cores once there are enough of them.
+ * Arrays cannot be changed in place, so the results are new arrays whose
+ * members are the values, or a {@link RecordArray} when they are all
+ * records of one kind. A routine given for ordering or combining runs on
+ * the interpreter thread, one call at a time.
+ */
+final class ArrayOperations {
+    // members below which the work stays on the calling thread
+    static final int PARALLEL = Integer.getInteger("imperative.parallelArrays", 1 << 13);
+
+    // the types of the members made, shared since nothing changes them
+    private static final Type INTEGER = new Type.PrimitiveType(Primitive.INTEGER);
+    private static final Type REAL = new Type.PrimitiveType(Primitive.REAL);
+    private static final Type BOOLEAN = new Type.PrimitiveType(Primitive.BOOLEAN);
+
+    private ArrayOperations() {
+    }
+
+    /**
+     * Ascending numbers, or in the order of a routine telling whether its
+     * first argument goes before its second.
+     */
+    static List<Expr> sort(Evaluator evaluator, Object array, Object before) {
+        Object[] values = members(evaluator, array, "sort");
+        if (before != null) {
+            sort(evaluator, routine(before, "sort by"), values, values.clone(), 0, values.length);
+            return array(values);
+        }
+
+        int[] ints = ints(values);
+        if (ints != null) {
+            if (ints.length < PARALLEL) {
+                Arrays.sort(ints);
+            } else {
+                Arrays.parallelSort(ints);
+            }
+            return array(ints);
+        }
+        double[] doubles = doubles(values);
+        if (doubles != null) {
+            if (doubles.length < PARALLEL) {
+                Arrays.sort(doubles);
+            } else {
+                Arrays.parallelSort(doubles);
+            }
+            return array(doubles);
+        }
+        // integers and reals mixed keep their own types
+        for (Object value : values) {
+            if (!(value instanceof Integer) && !(value instanceof Double)) {
+                throw new Intrinsic.ArgumentError("Can only sort numbers without a routine.");
+            }
+        }
+        Comparator<Object> numbers = (a, b) -> Double.compare(real(a), real(b));
+        if (values.length < PARALLEL) {
+            Arrays.sort(values, numbers);
+        } else {
+            Arrays.parallelSort(values, numbers);
+        }
+        return array(values);
+    }
+
+    /**
+     * Merge sorts values[from, to) with buffer holding the same values,
+     * asking the routine once per comparison whether the later value goes
+     * first. A routine cannot say two values are equal, which a
+     * Comparator needs to, so Arrays.sort is not used; equal values keep
+     * their order.
+     */
+    private static void sort(Evaluator evaluator, RoutineCallable before, Object[] values, Object[] buffer,
+                             int from, int to) {
+        if (to - from < 8) {
+            for (int i = from + 1; i < to; i++) {
+                Object value = values[i];
+                int j = i;
+                for (; j > from && Operators.isTruthy(before.call2(evaluator, value, values[j - 1])); j--) {
+                    values[j] = values[j - 1];
+                }
+                values[j] = value;
+            }
+            return;
+        }
+
+        // the halves are sorted in buffer and merged back into values
+        int middle = (from + to) >>> 1;
+        sort(evaluator, before, buffer, values, from, middle);
+        sort(evaluator, before, buffer, values, middle, to);
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++) {
+            if (right < to && (left == middle
+                    || Operators.isTruthy(before.call2(evaluator, buffer[right], buffer[left])))) {
+                values[i] = buffer[right++];
+            } else {
+                values[i] = buffer[left++];
+            }
+        }
+    }
+
+    static List<Expr> fill(Object count, Object value) {
+        if (!(count instanceof Integer) || (int) count < 0) {
+            throw new Intrinsic.ArgumentError("Array length must be a non-negative integer.");
+        }
+        Object[] values = new Object[(int) count];
+        Arrays.fill(values, value);
+        return array(values);
+    }
+
+    static List<Expr> copy(Evaluator evaluator, Object array) {
+        return array(members(evaluator, array, "copy"));
+    }
+
+    /**
+     * The running totals, member i the sum of the members up to it, or
+     * what a routine combining two values makes of them.
+     */
+    static List<Expr> scan(Evaluator evaluator, Object array, Object combine) {
+        Object[] values = members(evaluator, array, "scan");
+        RoutineCallable routine = combine != null ? routine(combine, "scan with") : null;
+        if (routine == null) {
+            int[] ints = ints(values);
+            if (ints != null) {
+                if (ints.length < PARALLEL) {
+                    for (int i = 1; i < ints.length; i++) {
+                        ints[i] += ints[i - 1];
+                    }
+                } else {
+                    Arrays.parallelPrefix(ints, Integer::sum);
+                }
+                return array(ints);
+            }
+            double[] doubles = doubles(values);
+            if (doubles != null) {
+                if (doubles.length < PARALLEL) {
+                    for (int i = 1; i < doubles.length; i++) {
+                        doubles[i] += doubles[i - 1];
+                    }
+                } else {
+                    Arrays.parallelPrefix(doubles, Double::sum);
+                }
+                return array(doubles);
+            }
+        }
+
+        for (int i = 1; i < values.length; i++) {
+            values[i] = routine != null ? routine.call2(evaluator, values[i - 1], values[i])
+                    : Operators.add(values[i - 1], values[i]);
+        }
+        return array(values);
+    }
+
+    /**
+     * The sum of the members, 0 for none, or the members combined from
+     * the left by a routine, null for none.
+     */
+    static Object reduce(Evaluator evaluator, Object array, Object combine) {
+        Object[] values = members(evaluator, array, "reduce");
+        RoutineCallable routine = combine != null ? routine(combine, "reduce with") : null;
+        if (routine == null) {
+            int[] ints = ints(values);
+            if (ints != null) {
+                IntStream stream = Arrays.stream(ints);
+                return (ints.length < PARALLEL ? stream : stream.parallel()).reduce(0, Integer::sum);
+            }
+            double[] doubles = doubles(values);
+            if (doubles != null) {
+                DoubleStream stream = Arrays.stream(doubles);
+                return (doubles.length < PARALLEL ? stream : stream.parallel()).reduce(0.0, Double::sum);
+            }
+        }
+
+        if (values.length == 0) return null;
+        Object result = values[0];
+        for (int i = 1; i < values.length; i++) {
+            result = routine != null ? routine.call2(evaluator, result, values[i]) : Operators.add(result, values[i]);
+        }
+        return result;
+    }
+
+    // the routine given to order or combine the members, which is passed two at a time
+    private static RoutineCallable routine(Object value, String use) {
+        if (!(value instanceof RoutineCallable)) throw new Intrinsic.ArgumentError("Can only " + use + " a routine.");
+        RoutineCallable routine = (RoutineCallable) value;
+        if (!routine.accepts(2)) {
+            throw new Intrinsic.ArgumentError("Can only " + use + " a routine taking 2 arguments, not "
+                    + routine.arity() + ".");
+        }
+        return routine;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object[] members(Evaluator evaluator, Object array, String routine) {
+        if (!(array instanceof List)) throw new Intrinsic.ArgumentError(routine + " needs an array.");
+        List<Expr> members = (List<Expr>) array;
+        Object[] values = new Object[members.size()];
+        for (int i = 0; i < values.length; i++) {
+            Expr member = members.get(i);
+            values[i] = member instanceof Expr.Literal ? ((Expr.Literal) member).value : evaluator.evaluate(member);
+        }
+        return values;
+    }
+
+    private static int[] ints(Object[] values) {
+        int[] ints = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            if (!(values[i] instanceof Integer)) return null;
+            ints[i] = (int) values[i];
+        }
+        return ints;
+    }
+
+    private static double[] doubles(Object[] values) {
+        double[] doubles = new double[values.length];
+        for (int i = 0; i < values.length; i++) {
+            if (!(values[i] instanceof Double)) return null;
+            doubles[i] = (double) values[i];
+        }
+        return doubles;
+    }
+
+    private static double real(Object value) {
+        if (value instanceof Integer) return (int) value;
+        return (double) value;
+    }
+
+    private static List<Expr> array(Object[] values) {
+        RecordArray records = RecordArray.of(values);
+        if (records != null) return records;
+
+        List<Expr> members = new ArrayList<>(values.length);
+        for (Object value : values) {
+            members.add(new Expr.Literal(value, type(value)));
+        }
+        return members;
+    }
+
+    private static List<Expr> array(int[] ints) {
+        List<Expr> members = new ArrayList<>(ints.length);
+        for (int value : ints) {
+            members.add(new Expr.Literal(value, INTEGER));
+        }
+        return members;
+    }
+
+    private static List<Expr> array(double[] doubles) {
+        List<Expr> members = new ArrayList<>(doubles.length);
+        for (double value : doubles) {
+            members.add(new Expr.Literal(value, REAL));
+        }
+        return members;
+    }
+
+    private static Type type(Object value) {
+        if (value instanceof Integer) return INTEGER;
+        if (value instanceof Double) return REAL;
+        if (value instanceof Boolean) return BOOLEAN;
+        return null;
+    }
+}
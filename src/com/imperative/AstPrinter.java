@@ -125,7 +125,12 @@ class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String>, Type.Vis
             builder.append(s.lexeme).append(" ");
         }
 
-        for (Stmt s: stmt.body) {
+        // printing is no reason to parse a body --lazy left for later
+        if (!stmt.isBodyParsed()) {
+            return builder.append("...").toString();
+        }
+
+        for (Stmt s: stmt.body()) {
             builder.append(print(s));
         }
 
@@ -0,0 +1,212 @@
+package com.imperative;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Base for optimization passes over the tree. Every node is rebuilt only
+ * when one of its children changed, so an untouched subtree keeps its
+ * identity and a pass overrides just the nodes it rewrites. A statement
+ * in a block may turn into several through {@link #rewriteInto}.
+ */
+class AstRewriter implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+
+    List<Stmt> rewrite(List<Stmt> statements) {
+        List<Stmt> rewritten = new ArrayList<>(statements.size());
+        for (Stmt statement : statements) {
+            rewriteInto(statement, rewritten);
+        }
+
+        return same(rewritten, statements) ? statements : rewritten;
+    }
+
+    /**
+     * Adds the rewritten statement to the block being rebuilt.
+     */
+    void rewriteInto(Stmt statement, List<Stmt> block) {
+        block.add(rewrite(statement));
+    }
+
+    Stmt rewrite(Stmt statement) {
+        return statement == null ? null : statement.accept(this);
+    }
+
+    Expr rewrite(Expr expr) {
+        return expr == null ? null : expr.accept(this);
+    }
+
+    List<Expr> rewriteAll(List<Expr> exprs) {
+        List<Expr> rewritten = new ArrayList<>(exprs.size());
+        for (Expr expr : exprs) {
+            rewritten.add(rewrite(expr));
+        }
+
+        return same(rewritten, exprs) ? exprs : rewritten;
+    }
+
+    private static boolean same(List<?> rewritten, List<?> original) {
+        if (rewritten.size() != original.size()) return false;
+        for (int i = 0; i < rewritten.size(); i++) {
+            if (rewritten.get(i) != original.get(i)) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr value = rewrite(expr.value);
+        return value == expr.value ? expr : new Expr.Assign(expr.name, value);
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = rewrite(expr.left);
+        Expr right = rewrite(expr.right);
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        Expr callee = rewrite(expr.callee);
+        List<Expr> arguments = rewriteAll(expr.arguments);
+        if (callee == expr.callee && arguments == expr.arguments) return expr;
+        return new Expr.Call(callee, expr.paren, arguments);
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+        Expr record = rewrite(expr.record);
+        return record == expr.record ? expr : new Expr.Get(record, expr.name);
+    }
+
+    @Override
+    public Expr visitGetIndexExpr(Expr.GetIndex expr) {
+        Expr array = rewrite(expr.array);
+        return array == expr.array ? expr : new Expr.GetIndex(array, expr.index);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        Expr expression = rewrite(expr.expression);
+        return expression == expr.expression ? expr : new Expr.Grouping(expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = rewrite(expr.left);
+        Expr right = rewrite(expr.right);
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = rewrite(expr.right);
+        return right == expr.right ? expr : new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+
+    @Override
+    public Stmt visitArrayStmt(Stmt.Array stmt) {
+        List<Expr> members = rewriteAll(stmt.members);
+        return members == stmt.members ? stmt : new Stmt.Array(stmt.name, members);
+    }
+
+    @Override
+    public Stmt visitBodyStmt(Stmt.Body stmt) {
+        List<Stmt> statements = rewrite(stmt.statements);
+        return statements == stmt.statements ? stmt : new Stmt.Body(statements);
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = rewrite(stmt.expression);
+        return expression == stmt.expression ? stmt : new Stmt.Expression(expression);
+    }
+
+    // a nested routine gets its own passes when it is declared at run time
+    @Override
+    public Stmt visitRoutineStmt(Stmt.Routine stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitRangeStmt(Stmt.Range stmt) {
+        Expr from = rewrite(stmt.from);
+        Expr to = rewrite(stmt.to);
+        if (from == stmt.from && to == stmt.to) return stmt;
+        return new Stmt.Range(from, to);
+    }
+
+    @Override
+    public Stmt visitForStmt(Stmt.For stmt) {
+        Stmt.Range range = (Stmt.Range) rewrite(stmt.range);
+        Stmt body = rewrite(stmt.body);
+        if (range == stmt.range && body == stmt.body) return stmt;
+        return new Stmt.For(stmt.name, stmt.reverse, range, body);
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = rewrite(stmt.condition);
+        Stmt thenBranch = rewrite(stmt.thenBranch);
+        Stmt elseBranch = rewrite(stmt.elseBranch);
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch && elseBranch == stmt.elseBranch) {
+            return stmt;
+        }
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        Expr expression = rewrite(stmt.expression);
+        return expression == stmt.expression ? stmt : new Stmt.Print(expression);
+    }
+
+    @Override
+    public Stmt visitRecordStmt(Stmt.Record stmt) {
+        List<Stmt.Var> fields = new ArrayList<>(stmt.fields.size());
+        boolean changed = false;
+        for (Stmt.Var field : stmt.fields) {
+            Stmt.Var rewritten = (Stmt.Var) rewrite(field);
+            changed |= rewritten != field;
+            fields.add(rewritten);
+        }
+        return changed ? new Stmt.Record(stmt.name, fields) : stmt;
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        Expr value = rewrite(stmt.value);
+        return value == stmt.value ? stmt : new Stmt.Return(stmt.keyword, value);
+    }
+
+    @Override
+    public Stmt visitTypeDeclareStmt(Stmt.TypeDeclare stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        Expr initializer = rewrite(stmt.initializer);
+        return initializer == stmt.initializer ? stmt : new Stmt.Var(stmt.name, initializer, stmt.type);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = rewrite(stmt.condition);
+        Stmt body = rewrite(stmt.body);
+        if (condition == stmt.condition && body == stmt.body) return stmt;
+        return new Stmt.While(condition, body);
+    }
+}
@@ -0,0 +1,456 @@
+package com.imperative;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * The second execution tier. Turns a routine body into a tree of closures
+ * that run directly against an Environment: operators are picked once at
+ * compile time instead of on every visit, and no visitor dispatch is left
+ * on the hot path. Statements that rarely sit in loops (records, arrays,
+ * nested routines and types) are handed back to the Evaluator, so both
+ * tiers always share one set of semantics.
+ */
+class ClosureCompiler implements Expr.Visitor<ClosureCompiler.Code>, Stmt.Visitor<ClosureCompiler.Action> {
+    interface Code {
+        Object run(Environment environment);
+    }
+
+    interface Action {
+        void run(Environment environment);
+    }
+
+    /**
+     * The rest of a loop, entered at its back edge with the state of the
+     * interrupted run: for loops pass their counter and bound, while loops
+     * keep everything in the environment.
+     */
+    interface LoopEntry {
+        void run(Environment environment, int from, int to);
+    }
+
+    // a single daemon thread, so compiling never holds up the interpreter or exit
+    private static final ExecutorService compiler = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "imperative-compiler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    final Evaluator evaluator;
+
+    ClosureCompiler(Evaluator evaluator) {
+        this.evaluator = evaluator;
+    }
+
+    /**
+     * Compiles on the compiler thread and hands the result to the
+     * installer there. The caller keeps interpreting meanwhile.
+     */
+    static <T> void submit(Supplier<T> compile, Consumer<T> installer) {
+        compiler.execute(() -> installer.accept(compile.get()));
+    }
+
+    /**
+     * Compiles a loop for on-stack replacement, from the point where an
+     * iteration of its body has just finished.
+     */
+    LoopEntry backEdge(Stmt.Loop loop) {
+        if (loop instanceof Stmt.While) {
+            Action rest = compile(loop);
+            return (environment, from, to) -> rest.run(environment);
+        }
+
+        Stmt.For stmt = (Stmt.For) loop;
+        Token name = stmt.name;
+        LoopEntry rest = forLoop(stmt);
+        if (stmt.reverse) {
+            return (environment, from, to) -> {
+                environment.assign(name, --from);
+                rest.run(environment, from, to);
+            };
+        }
+
+        return (environment, from, to) -> {
+            environment.assign(name, ++from);
+            rest.run(environment, from, to);
+        };
+    }
+
+    Action sequence(List<Stmt> statements) {
+        Action[] actions = new Action[statements.size()];
+        for (int i = 0; i < actions.length; i++) {
+            actions[i] = compile(statements.get(i));
+        }
+
+        if (actions.length == 1) return actions[0];
+        return environment -> {
+            for (Action action : actions) {
+                action.run(environment);
+            }
+        };
+    }
+
+    Action compile(Stmt statement) {
+        return statement.accept(this);
+    }
+
+    Code compile(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private Action interpreted(Stmt statement) {
+        return environment -> evaluator.executeIn(statement, environment);
+    }
+
+    @Override
+    public Code visitAssignExpr(Expr.Assign expr) {
+        Token name = expr.name;
+        Code value = compile(expr.value);
+        return environment -> {
+            environment.assign(name, value.run(environment));
+            return null;
+        };
+    }
+
+    @Override
+    public Code visitBinaryExpr(Expr.Binary expr) {
+        Code left = compile(expr.left);
+        Code right = compile(expr.right);
+
+        switch (expr.operator.type) {
+            case GREATER:
+                return environment -> Operators.greater(left.run(environment), right.run(environment));
+            case GREATER_EQUAL:
+                return environment -> Operators.greaterEqual(left.run(environment), right.run(environment));
+            case LESS:
+                return environment -> Operators.less(left.run(environment), right.run(environment));
+            case LESS_EQUAL:
+                return environment -> Operators.lessEqual(left.run(environment), right.run(environment));
+            case SLASH_EQUAL:
+                return environment -> !Operators.isEqual(left.run(environment), right.run(environment));
+            case EQUAL_EQUAL:
+                return environment -> Operators.isEqual(left.run(environment), right.run(environment));
+            case PLUS:
+                return environment -> Operators.add(left.run(environment), right.run(environment));
+            case MINUS:
+                return environment -> Operators.subtract(left.run(environment), right.run(environment));
+            case SLASH:
+                return environment -> Operators.divide(left.run(environment), right.run(environment));
+            case STAR:
+                return environment -> Operators.multiply(left.run(environment), right.run(environment));
+        }
+
+        TokenType operator = expr.operator.type;
+        return environment -> Operators.binary(operator, left.run(environment), right.run(environment));
+    }
+
+    @Override
+    public Code visitCallExpr(Expr.Call expr) {
+        Code callee = compile(expr.callee);
+        Token paren = expr.paren;
+        Code[] arguments = new Code[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = compile(expr.arguments.get(i));
+        }
+
+        switch (arguments.length) {
+            case 0:
+                return environment -> RoutineCallable.check(callee.run(environment), 0, paren).call0(evaluator);
+            case 1: {
+                Code first = arguments[0];
+                return environment -> {
+                    Object function = callee.run(environment);
+                    Object a = first.run(environment);
+                    try {
+                        return RoutineCallable.check(function, 1, paren).call1(evaluator, a);
+                    } catch (Intrinsic.ArgumentError error) {
+                        throw new RuntimeError(paren, error.getMessage());
+                    }
+                };
+            }
+            case 2: {
+                Code first = arguments[0];
+                Code second = arguments[1];
+                return environment -> {
+                    Object function = callee.run(environment);
+                    Object a = first.run(environment);
+                    Object b = second.run(environment);
+                    try {
+                        return RoutineCallable.check(function, 2, paren).call2(evaluator, a, b);
+                    } catch (Intrinsic.ArgumentError error) {
+                        throw new RuntimeError(paren, error.getMessage());
+                    }
+                };
+            }
+            case 3: {
+                Code first = arguments[0];
+                Code second = arguments[1];
+                Code third = arguments[2];
+                return environment -> {
+                    Object function = callee.run(environment);
+                    Object a = first.run(environment);
+                    Object b = second.run(environment);
+                    Object c = third.run(environment);
+                    return RoutineCallable.check(function, 3, paren).call3(evaluator, a, b, c);
+                };
+            }
+            case 4: {
+                Code first = arguments[0];
+                Code second = arguments[1];
+                Code third = arguments[2];
+                Code fourth = arguments[3];
+                return environment -> {
+                    Object function = callee.run(environment);
+                    Object a = first.run(environment);
+                    Object b = second.run(environment);
+                    Object c = third.run(environment);
+                    Object d = fourth.run(environment);
+                    return RoutineCallable.check(function, 4, paren).call4(evaluator, a, b, c, d);
+                };
+            }
+            default:
+                return environment -> {
+                    Object function = callee.run(environment);
+                    Object[] values = new Object[arguments.length];
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = arguments[i].run(environment);
+                    }
+                    return RoutineCallable.check(function, values.length, paren).call(evaluator, values);
+                };
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Code visitGetExpr(Expr.Get expr) {
+        Token name = expr.name;
+        if (expr.record instanceof Expr.GetIndex) {
+            Code array = compile(((Expr.GetIndex) expr.record).array);
+            int index = ((Expr.GetIndex) expr.record).index - 1;
+            return environment -> {
+                Object value = array.run(environment);
+                if (value instanceof RecordArray) return ((RecordArray) value).get(index, name);
+                Expr member = ((List<Expr>) value).get(index);
+                return ((IRecord) evaluator.evaluateIn(member, environment)).get(name);
+            };
+        }
+        Code record = compile(expr.record);
+        return environment -> ((IRecord) record.run(environment)).get(name);
+    }
+
+    @Override
+    public Code visitGetIndexExpr(Expr.GetIndex expr) {
+        // array members are expressions evaluated on access
+        return environment -> evaluator.evaluateIn(expr, environment);
+    }
+
+    @Override
+    public Code visitGroupingExpr(Expr.Grouping expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public Code visitLiteralExpr(Expr.Literal expr) {
+        Object value = expr.value;
+        return environment -> value;
+    }
+
+    @Override
+    public Code visitLogicalExpr(Expr.Logical expr) {
+        Code left = compile(expr.left);
+        Code right = compile(expr.right);
+
+        switch (expr.operator.type) {
+            case OR:
+                return environment -> {
+                    Object value = left.run(environment);
+                    return Operators.isTruthy(value) ? value : right.run(environment);
+                };
+            case AND:
+                return environment -> {
+                    Object value = left.run(environment);
+                    return !Operators.isTruthy(value) ? value : right.run(environment);
+                };
+            case XOR:
+                return environment -> Operators.isTruthy(left.run(environment)) ^ Operators.isTruthy(right.run(environment));
+        }
+
+        return environment -> {
+            left.run(environment);
+            return right.run(environment);
+        };
+    }
+
+    @Override
+    public Code visitUnaryExpr(Expr.Unary expr) {
+        Code right = compile(expr.right);
+        Token operator = expr.operator;
+
+        switch (operator.type) {
+            case MINUS:
+                return environment -> Operators.negate(operator, right.run(environment));
+            case NOT:
+                return environment -> !Operators.isTruthy(right.run(environment));
+        }
+
+        return environment -> {
+            right.run(environment);
+            return null;
+        };
+    }
+
+    @Override
+    public Code visitVariableExpr(Expr.Variable expr) {
+        Token name = expr.name;
+        return environment -> environment.get(name);
+    }
+
+    @Override
+    public Action visitArrayStmt(Stmt.Array stmt) {
+        return interpreted(stmt);
+    }
+
+    @Override
+    public Action visitBodyStmt(Stmt.Body stmt) {
+        Action body = sequence(stmt.statements);
+        return environment -> {
+            Environment block = new Environment(environment, evaluator.stack);
+            try {
+                evaluator.executeCompiled(body, block);
+            } finally {
+                block.release();
+            }
+        };
+    }
+
+    @Override
+    public Action visitExpressionStmt(Stmt.Expression stmt) {
+        Code expression = compile(stmt.expression);
+        return expression::run;
+    }
+
+    @Override
+    public Action visitRoutineStmt(Stmt.Routine stmt) {
+        return interpreted(stmt);
+    }
+
+    @Override
+    public Action visitRangeStmt(Stmt.Range stmt) {
+        return environment -> {
+        };
+    }
+
+    @Override
+    public Action visitForStmt(Stmt.For stmt) {
+        Token name = stmt.name;
+        Code lower = compile(stmt.range.from);
+        Code upper = compile(stmt.range.to);
+        LoopEntry loop = forLoop(stmt);
+
+        return environment -> {
+            int from = (int) lower.run(environment);
+            int to = (int) upper.run(environment);
+
+            environment.define(name, from, new Type.PrimitiveType(Primitive.INTEGER));
+            loop.run(environment, from, to);
+        };
+    }
+
+    private LoopEntry forLoop(Stmt.For stmt) {
+        Token name = stmt.name;
+        Action body = compile(stmt.body);
+
+        if (stmt.reverse) {
+            return (environment, from, to) -> {
+                while (from > to) {
+                    body.run(environment);
+                    environment.assign(name, --from);
+                }
+            };
+        }
+
+        return (environment, from, to) -> {
+            while (from < to) {
+                body.run(environment);
+                environment.assign(name, ++from);
+            }
+        };
+    }
+
+    @Override
+    public Action visitIfStmt(Stmt.If stmt) {
+        Code condition = compile(stmt.condition);
+        Action thenBranch = compile(stmt.thenBranch);
+
+        if (stmt.elseBranch == null) {
+            return environment -> {
+                if (Operators.isTruthy(condition.run(environment))) thenBranch.run(environment);
+            };
+        }
+
+        Action elseBranch = compile(stmt.elseBranch);
+        return environment -> {
+            if (Operators.isTruthy(condition.run(environment))) {
+                thenBranch.run(environment);
+            } else {
+                elseBranch.run(environment);
+            }
+        };
+    }
+
+    @Override
+    public Action visitPrintStmt(Stmt.Print stmt) {
+        Code expression = compile(stmt.expression);
+        return environment -> System.out.println(Operators.stringify(expression.run(environment)));
+    }
+
+    @Override
+    public Action visitRecordStmt(Stmt.Record stmt) {
+        return interpreted(stmt);
+    }
+
+    @Override
+    public Action visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) {
+            return environment -> {
+                throw new Return(null);
+            };
+        }
+
+        Code value = compile(stmt.value);
+        return environment -> {
+            throw new Return(value.run(environment));
+        };
+    }
+
+    @Override
+    public Action visitTypeDeclareStmt(Stmt.TypeDeclare stmt) {
+        return interpreted(stmt);
+    }
+
+    @Override
+    public Action visitVarStmt(Stmt.Var stmt) {
+        Token name = stmt.name;
+        Type type = stmt.type;
+        if (stmt.initializer == null) {
+            return environment -> environment.define(name, null, type);
+        }
+
+        Code initializer = compile(stmt.initializer);
+        return environment -> environment.define(name, initializer.run(environment), type);
+    }
+
+    @Override
+    public Action visitWhileStmt(Stmt.While stmt) {
+        Code condition = compile(stmt.condition);
+        Action body = compile(stmt.body);
+        return environment -> {
+            while (Operators.isTruthy(condition.run(environment))) {
+                body.run(environment);
+            }
+        };
+    }
+}
@@ -0,0 +1,212 @@
+package com.imperative;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Merges structurally equal pure subexpressions within a basic block: a
+ * run of declarations, expression, print and return statements. An
+ * expression computed at least twice, with nothing in between writing a
+ * name it reads, is computed once into a temporary declared before the
+ * statement that first needs it. A call ends the run for expressions
+ * that read globals. Right operands of and, or and xor may not run, so
+ * they never decide where a temporary goes, but they do use one.
+ */
+class CommonSubexpressions extends AstRewriter {
+    private final Set<Symbol> locals;
+    private int merged = 0;
+
+    private static class Group {
+        final String key;
+        final Expr expr;
+        final Set<Symbol> reads;
+        final int first;
+        int last;
+        int count;
+        Token temporary;
+
+        Group(String key, Expr expr, int first) {
+            this.key = key;
+            this.expr = expr;
+            this.reads = PureExpressions.reads(expr);
+            this.first = first;
+        }
+    }
+
+    private CommonSubexpressions(Set<Symbol> locals) {
+        this.locals = locals;
+    }
+
+    static List<Stmt> apply(List<Token> params, List<Stmt> body) {
+        return new CommonSubexpressions(PureExpressions.locals(params, body)).rewrite(body);
+    }
+
+    @Override
+    List<Stmt> rewrite(List<Stmt> statements) {
+        List<Stmt> block = super.rewrite(statements);
+        List<Stmt> rewritten = new ArrayList<>(block.size());
+        int start = 0;
+        for (int i = 0; i <= block.size(); i++) {
+            if (i < block.size() && isStraightLine(block.get(i))) continue;
+
+            basicBlock(block.subList(start, i), rewritten);
+            if (i < block.size()) rewritten.add(block.get(i));
+            start = i + 1;
+        }
+
+        return rewritten.size() == block.size() ? block : rewritten;
+    }
+
+    private static boolean isStraightLine(Stmt statement) {
+        if (!(statement instanceof Stmt.Var || statement instanceof Stmt.Expression
+                || statement instanceof Stmt.Print || statement instanceof Stmt.Return)) {
+            return false;
+        }
+        return !SideEffects.of(statement).nestedAssignment;
+    }
+
+    private void basicBlock(List<Stmt> statements, List<Stmt> block) {
+        Map<String, Group> open = new LinkedHashMap<>();
+        List<Group> repeated = new ArrayList<>();
+
+        for (int i = 0; i < statements.size(); i++) {
+            Stmt statement = statements.get(i);
+            SideEffects effects = SideEffects.of(statement);
+
+            Map<String, Expr> seen = new HashMap<>();
+            Map<String, Integer> counts = new HashMap<>();
+            collect(expression(statement), effects.calls, seen, counts);
+            for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+                int index = i;
+                Group group = open.computeIfAbsent(entry.getKey(), key -> new Group(key, seen.get(key), index));
+                group.count += entry.getValue();
+                group.last = i;
+            }
+
+            open.values().removeIf(group -> {
+                if (effects.preserves(group.reads, locals)) return false;
+                if (group.count > 1) repeated.add(group);
+                return true;
+            });
+        }
+        for (Group group : open.values()) {
+            if (group.count > 1) repeated.add(group);
+        }
+
+        List<Group> chosen = choose(repeated);
+        if (chosen.isEmpty()) {
+            block.addAll(statements);
+            return;
+        }
+
+        // smaller expressions first, a larger one may use their temporaries
+        chosen.sort(Comparator.comparingInt((Group group) -> group.key.length()));
+        for (int i = 0; i < statements.size(); i++) {
+            Map<String, Token> temporaries = new HashMap<>();
+            for (Group group : chosen) {
+                if (group.first == i) {
+                    Replacer replacer = new Replacer(temporaries);
+                    block.add(new Stmt.Var(group.temporary, group.expr.accept(replacer), null));
+                }
+                if (group.first <= i && i <= group.last) temporaries.put(group.key, group.temporary);
+            }
+            block.add(new Replacer(temporaries).rewrite(statements.get(i)));
+        }
+    }
+
+    /**
+     * Keeps the repeated expressions still computed at least twice once
+     * every larger chosen expression containing them is computed once.
+     */
+    private List<Group> choose(List<Group> repeated) {
+        repeated.sort(Comparator.comparingInt((Group group) -> group.key.length()).reversed());
+        List<Group> chosen = new ArrayList<>();
+        for (Group group : repeated) {
+            int remaining = group.count;
+            for (Group larger : chosen) {
+                if (larger.first <= group.last && group.first <= larger.last) {
+                    remaining -= occurrences(larger.key, group.key) * (larger.count - 1);
+                }
+            }
+            if (remaining < 2) continue;
+
+            group.temporary = new Token(TokenType.IDENTIFIER,
+                    "$cse" + ++merged, null, PureExpressions.line(group.expr));
+            chosen.add(group);
+        }
+        return chosen;
+    }
+
+    private static int occurrences(String key, String part) {
+        int count = 0;
+        for (int at = key.indexOf(part); at >= 0; at = key.indexOf(part, at + 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    private static Expr expression(Stmt statement) {
+        if (statement instanceof Stmt.Var) return ((Stmt.Var) statement).initializer;
+        if (statement instanceof Stmt.Print) return ((Stmt.Print) statement).expression;
+        if (statement instanceof Stmt.Return) return ((Stmt.Return) statement).value;
+
+        Expr expr = ((Stmt.Expression) statement).expression;
+        return expr instanceof Expr.Assign ? ((Expr.Assign) expr).value : expr;
+    }
+
+    /**
+     * Counts the pure subexpressions a statement always evaluates. With a
+     * call in the statement, those reading globals may see it or not.
+     */
+    private void collect(Expr expr, boolean calls, Map<String, Expr> seen, Map<String, Integer> counts) {
+        if (expr == null) return;
+
+        if (!PureExpressions.isTrivial(expr) && !(expr instanceof Expr.Grouping)) {
+            String key = PureExpressions.key(expr);
+            if (key != null && (!calls || locals.containsAll(PureExpressions.reads(expr)))) {
+                seen.putIfAbsent(key, expr);
+                counts.merge(key, 1, Integer::sum);
+            }
+        }
+
+        if (expr instanceof Expr.Binary) {
+            collect(((Expr.Binary) expr).left, calls, seen, counts);
+            collect(((Expr.Binary) expr).right, calls, seen, counts);
+        } else if (expr instanceof Expr.Logical) {
+            collect(((Expr.Logical) expr).left, calls, seen, counts);
+        } else if (expr instanceof Expr.Unary) {
+            collect(((Expr.Unary) expr).right, calls, seen, counts);
+        } else if (expr instanceof Expr.Grouping) {
+            collect(((Expr.Grouping) expr).expression, calls, seen, counts);
+        } else if (expr instanceof Expr.Get) {
+            collect(((Expr.Get) expr).record, calls, seen, counts);
+        } else if (expr instanceof Expr.Call) {
+            collect(((Expr.Call) expr).callee, calls, seen, counts);
+            for (Expr argument : ((Expr.Call) expr).arguments) {
+                collect(argument, calls, seen, counts);
+            }
+        }
+    }
+
+    private static class Replacer extends AstRewriter {
+        final Map<String, Token> temporaries;
+
+        Replacer(Map<String, Token> temporaries) {
+            this.temporaries = temporaries;
+        }
+
+        @Override
+        Expr rewrite(Expr expr) {
+            if (expr != null && !temporaries.isEmpty() && !PureExpressions.isTrivial(expr)) {
+                Token temporary = temporaries.get(PureExpressions.key(expr));
+                if (temporary != null) return new Expr.Variable(temporary);
+            }
+            return super.rewrite(expr);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.imperative;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Sparse conditional constant propagation (Wegman and Zadeck). Values
+ * start out unknown and blocks unreachable; the entry is reachable and
+ * every reachable block evaluates its instructions over what is known,
+ * following only the branch a known condition takes. Phis merge over the
+ * edges found executable, so a variable reassigned the same constant in
+ * a loop, or only on a path that never runs, stays constant. Folding
+ * goes through {@link Operators}, and anything that would throw is left
+ * for run time. Afterwards constant values replace their instructions,
+ * decided branches become jumps and unreachable blocks are removed.
+ */
+class ConstantPropagation implements IrPass {
+    // the lattice bottom: known not to be one constant
+    private static final Object VARYING = new Object();
+
+    // lattice values, absent while unknown; constants are boxed so null can be one
+    private final Map<Ir.Value, Object> values = new HashMap<>();
+    private final Set<Ir.Block> reachable = new HashSet<>();
+    private final Set<List<Ir.Block>> edges = new HashSet<>();
+
+    private static final class Known {
+        final Object value;
+
+        Known(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Known)) return false;
+            Object that = ((Known) other).value;
+            // integer 1 and real 1.0 fold differently
+            return value == null ? that == null : that != null
+                    && value.getClass() == that.getClass() && value.equals(that);
+        }
+
+        @Override
+        public int hashCode() {
+            return value == null ? 0 : value.hashCode();
+        }
+    }
+
+    @Override
+    public String name() {
+        return "sccp";
+    }
+
+    @Override
+    public boolean run(Ir.Function function) {
+        values.clear();
+        reachable.clear();
+        edges.clear();
+        solve(function);
+        return rewrite(function);
+    }
+
+    private void solve(Ir.Function function) {
+        reachable.add(function.entry());
+        boolean changed;
+        do {
+            changed = false;
+            for (Ir.Block block : function.blocks) {
+                if (!reachable.contains(block)) continue;
+
+                for (Ir.Phi phi : block.phis) {
+                    changed |= update(phi, merge(phi));
+                }
+                for (Ir.Instruction instruction : block.instructions) {
+                    changed |= update(instruction, evaluate(instruction));
+                }
+                for (Ir.Block successor : taken(block)) {
+                    changed |= edges.add(List.of(block, successor));
+                    changed |= reachable.add(successor);
+                }
+            }
+        } while (changed);
+    }
+
+    private Object value(Ir.Value value) {
+        if (value instanceof Ir.Constant) return new Known(((Ir.Constant) value).value);
+        if (value instanceof Ir.Parameter) return VARYING;
+        return values.get(value);
+    }
+
+    private boolean update(Ir.Value value, Object state) {
+        Object old = values.get(value);
+        if (state == null || state.equals(old)) return false;
+        // once two constants meet, the value stays varying
+        values.put(value, old == null ? state : VARYING);
+        return !VARYING.equals(old);
+    }
+
+    private Object merge(Ir.Phi phi) {
+        Object state = null;
+        List<Ir.Block> predecessors = phi.block.predecessors;
+        for (int i = 0; i < predecessors.size(); i++) {
+            if (!edges.contains(List.of(predecessors.get(i), phi.block))) continue;
+
+            Object operand = value(phi.operand(i));
+            if (operand == null) continue;
+            if (state == null) {
+                state = operand;
+            } else if (!state.equals(operand)) {
+                return VARYING;
+            }
+        }
+        return state;
+    }
+
+    private Object evaluate(Ir.Instruction instruction) {
+        if (!(instruction instanceof Ir.Binary || instruction instanceof Ir.Unary
+                || instruction instanceof Ir.Xor || instruction instanceof Ir.ToInteger
+                || instruction instanceof Ir.Remains || instruction instanceof Ir.Native)) {
+            return VARYING;
+        }
+        // the array routines make a new array per call
+        if (instruction instanceof Ir.Native && instruction.hasEffect()) {
+            return VARYING;
+        }
+
+        List<Object> operands = new ArrayList<>();
+        for (Ir.Value operand : instruction.operands) {
+            Object state = value(operand);
+            if (state == null) return null;
+            if (state == VARYING) return VARYING;
+            operands.add(((Known) state).value);
+        }
+
+        try {
+            return new Known(fold(instruction, operands));
+        } catch (RuntimeException error) {
+            return VARYING;
+        }
+    }
+
+    static Object fold(Ir.Instruction instruction, List<Object> operands) {
+        if (instruction instanceof Ir.Binary) {
+            return Operators.binary(((Ir.Binary) instruction).operator.type, operands.get(0), operands.get(1));
+        }
+        if (instruction instanceof Ir.Unary) {
+            Token operator = ((Ir.Unary) instruction).operator;
+            if (operator.type == TokenType.MINUS) return Operators.negate(operator, operands.get(0));
+            return operator.type == TokenType.NOT ? !Operators.isTruthy(operands.get(0)) : null;
+        }
+        if (instruction instanceof Ir.Xor) {
+            return Operators.isTruthy(operands.get(0)) ^ Operators.isTruthy(operands.get(1));
+        }
+        if (instruction instanceof Ir.Remains) {
+            return ((Ir.Remains) instruction).test((int) operands.get(0), (int) operands.get(1));
+        }
+        if (instruction instanceof Ir.Native) {
+            return ((Ir.Native) instruction).intrinsic.call(null, operands.toArray());
+        }
+        return (int) operands.get(0);
+    }
+
+    private List<Ir.Block> taken(Ir.Block block) {
+        if (!(block.terminator instanceof Ir.Branch)) return block.successors();
+
+        Ir.Branch branch = (Ir.Branch) block.terminator;
+        Object condition = value(branch.operands.get(0));
+        if (!(condition instanceof Known)) return block.successors();
+        return List.of(Operators.isTruthy(((Known) condition).value) ? branch.then : branch.otherwise);
+    }
+
+    private boolean rewrite(Ir.Function function) {
+        boolean changed = false;
+
+        for (Ir.Block block : function.blocks) {
+            if (!reachable.contains(block)) continue;
+
+            List<Ir.Instruction> folded = new ArrayList<>();
+            for (Ir.Phi phi : block.phis) {
+                if (values.get(phi) instanceof Known) folded.add(phi);
+            }
+            for (Ir.Instruction instruction : block.instructions) {
+                if (values.get(instruction) instanceof Known) folded.add(instruction);
+            }
+            for (Ir.Instruction instruction : folded) {
+                function.replaceAllUses(instruction, function.constant(((Known) values.get(instruction)).value));
+                block.phis.remove(instruction);
+                block.instructions.remove(instruction);
+                changed = true;
+            }
+
+            if (block.terminator instanceof Ir.Branch && taken(block).size() == 1) {
+                Ir.Branch branch = (Ir.Branch) block.terminator;
+                Ir.Block target = taken(block).get(0);
+                Ir.Block dropped = target == branch.then ? branch.otherwise : branch.then;
+                dropped.removePredecessor(block);
+                block.terminator = new Ir.Jump(target);
+                changed = true;
+            }
+        }
+
+        changed |= SimplifyCfg.removeUnreachable(function, reachable);
+        return changed;
+    }
+}
@@ -0,0 +1,74 @@
+package com.imperative;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Removes phis that merge one value with nothing but themselves, then
+ * every instruction whose value nothing needs: live are the instructions
+ * with effects, the operands of terminators, and whatever those use.
+ */
+class DeadCodeElimination implements IrPass {
+    @Override
+    public String name() {
+        return "dce";
+    }
+
+    @Override
+    public boolean run(Ir.Function function) {
+        boolean changed = removeTrivialPhis(function);
+
+        Set<Ir.Value> live = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Ir.Value> work = new ArrayDeque<>();
+        for (Ir.Block block : function.blocks) {
+            for (Ir.Instruction instruction : block.instructions) {
+                if (instruction.hasEffect()) work.add(instruction);
+            }
+            work.addAll(block.terminator.operands);
+        }
+        while (!work.isEmpty()) {
+            Ir.Value value = work.remove();
+            if (!live.add(value) || !(value instanceof Ir.Instruction)) continue;
+            work.addAll(((Ir.Instruction) value).operands);
+        }
+
+        for (Ir.Block block : function.blocks) {
+            changed |= block.phis.removeIf(phi -> !live.contains(phi));
+            changed |= block.instructions.removeIf(instruction -> !live.contains(instruction));
+        }
+        return changed;
+    }
+
+    private static boolean removeTrivialPhis(Ir.Function function) {
+        boolean changed = false;
+        boolean removed;
+        do {
+            removed = false;
+            for (Ir.Block block : function.blocks) {
+                for (Ir.Phi phi : block.phis) {
+                    Ir.Value same = null;
+                    boolean trivial = true;
+                    for (Ir.Value operand : phi.operands) {
+                        if (operand == phi || operand == same) continue;
+                        if (same != null) {
+                            trivial = false;
+                            break;
+                        }
+                        same = operand;
+                    }
+                    if (!trivial || same == null) continue;
+
+                    block.phis.remove(phi);
+                    function.replaceAllUses(phi, same);
+                    removed = true;
+                    break;
+                }
+            }
+            changed |= removed;
+        } while (removed);
+        return changed;
+    }
+}
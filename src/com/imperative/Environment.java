@@ -3,23 +3,65 @@ package com.imperative;
 import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * The variables in scope. The globals keep theirs in maps; every other
+ * environment is a window of the evaluator's {@link ValueStack}, searched
+ * by scanning its few names, and is released when its block or routine
+ * is left.
+ */
 class Environment {
     private final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
-    private final Map<String, Type> types = new HashMap<>();
-    private static final Map<String, Type> aliases = new HashMap<>();
+    private final Map<Symbol, Object> values;
+    private final Map<Symbol, Type> types;
+    private static final Map<Symbol, Type> aliases = new HashMap<>();
+
+    private final ValueStack stack;
+    // the window's first slot and how many slots it has
+    private final int base;
+    private int size = 0;
 
     Environment() {
         enclosing = null;
+        values = new HashMap<>();
+        types = new HashMap<>();
+        stack = null;
+        base = 0;
     }
 
-    Environment(Environment enclosing) {
+    /**
+     * An environment in a new window on top of the stack.
+     */
+    Environment(Environment enclosing, ValueStack stack) {
         this.enclosing = enclosing;
+        this.values = null;
+        this.types = null;
+        this.stack = stack;
+        this.base = stack.top;
+    }
+
+    /**
+     * Gives the window back to the stack.
+     */
+    void release() {
+        stack.popTo(base);
+    }
+
+    private int slot(Symbol symbol) {
+        for (int slot = base + size - 1; slot >= base; slot--) {
+            if (stack.names[slot] == symbol) return slot;
+        }
+        return -1;
     }
 
     Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
+        if (stack != null) {
+            int slot = slot(name.symbol);
+            if (slot >= 0) return stack.values[slot];
+        } else {
+            Object value = values.get(name.symbol);
+            if (value != null || values.containsKey(name.symbol)) {
+                return value;
+            }
         }
 
         if (enclosing != null) return enclosing.get(name);
@@ -27,10 +69,38 @@ class Environment {
         throw new RuntimeError(name, "Undefined variable '" + name.lexeme);
     }
 
+    /**
+     * The value bound to the name here or further out, null when it is
+     * unbound, without the error {@link #get} raises.
+     */
+    Object lookup(Token name) {
+        if (stack != null) {
+            int slot = slot(name.symbol);
+            if (slot >= 0) return stack.values[slot];
+        } else {
+            Object value = values.get(name.symbol);
+            if (value != null || values.containsKey(name.symbol)) return value;
+        }
+        return enclosing != null ? enclosing.lookup(name) : null;
+    }
+
     void define(Token name, Object value, Type type) {
-        if (!values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
-            types.put(name.lexeme, type);
+        if (stack != null) {
+            if (slot(name.symbol) < 0) {
+                // the windows of inner blocks are all released by now, so this one is on top
+                stack.push(name.symbol, value, type);
+                size++;
+                return;
+            }
+        } else if (!values.containsKey(name.symbol) || values.get(name.symbol) instanceof Intrinsic) {
+            // the program may take the name of a library routine for its own
+            values.put(name.symbol, value);
+            // parameters and most variables have no declared type to keep
+            if (type != null) {
+                types.put(name.symbol, type);
+            } else {
+                types.remove(name.symbol);
+            }
             return;
         }
 
@@ -38,8 +108,14 @@ class Environment {
     }
 
     void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
+        if (stack != null) {
+            int slot = slot(name.symbol);
+            if (slot >= 0) {
+                stack.values[slot] = value;
+                return;
+            }
+        } else if (values.containsKey(name.symbol)) {
+            values.put(name.symbol, value);
             return;
         }
 
@@ -52,12 +128,13 @@ class Environment {
     }
 
     void defineTypeAlias(Token name, Type type) {
-        aliases.put(name.lexeme, type);
+        aliases.put(name.symbol, type);
     }
 
     Type getTypeAlias(Token name) {
-        if (aliases.containsKey(name.lexeme)) {
-            return aliases.get(name.lexeme);
+        Type type = aliases.get(name.symbol);
+        if (type != null) {
+            return type;
         }
         throw new RuntimeError(name, "Cannot find type in this scope.");
     }
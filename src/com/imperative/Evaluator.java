@@ -1,11 +1,42 @@
 package com.imperative;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 class Evaluator implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
+    // back edges after which a running loop moves into compiled code
+    static final int OSR_THRESHOLD = Integer.getInteger("imperative.osrThreshold", 10000);
+
     final Environment globals = new Environment();
     private Environment environment = globals;
+    // where every environment below the globals keeps its variables
+    final ValueStack stack = new ValueStack();
+    // set while running under --profile
+    Profiler profiler = null;
+    long routineCalls = 0;
+    // environments currently entered through executeBlock, and the most at once
+    private int environmentDepth = 0;
+    int peakEnvironmentDepth = 0;
+    // hot routines are compiled to closures unless --no-tiering is given
+    boolean tiering = true;
+    // routine bodies go through the Optimizer unless --no-optimize is given
+    boolean optimize = true;
+    // hot loops are traced instead of compiled whole, with --tracing
+    boolean tracing = false;
+    // --dump-ir prints each routine's IR to stderr as the passes change it
+    boolean dumpIr = false;
+    // the loop iteration being recorded for a trace
+    private TraceCompiler.Recording recording = null;
+    // what this evaluator has counted and compiled for each loop, by its slot,
+    // since the compiled code runs against its globals and the statements may be shared
+    private LoopState[] loops = new LoopState[16];
+    // the routine whose body is being interpreted, null at the top level
+    IRoutine currentRoutine = null;
+
+    Evaluator() {
+        Intrinsic.defineAll(globals);
+    }
 
     void interpret(List<Stmt> statements) {
         try {
@@ -18,6 +49,16 @@ class Evaluator implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
 
     private void execute(Stmt statement) {
+        if (profiler != null) {
+            profiler.enterStatement(statement);
+            try {
+                statement.accept(this);
+            } finally {
+                profiler.exitStatement();
+            }
+            return;
+        }
+
         statement.accept(this);
     }
 
@@ -25,6 +66,30 @@ class Evaluator implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return expr.accept(this);
     }
 
+    /**
+     * Runs one statement in the given environment, for compiled code that
+     * leaves the statement to the interpreter.
+     */
+    void executeIn(Stmt statement, Environment environment) {
+        Environment previous = this.environment;
+        try {
+            this.environment = environment;
+            execute(statement);
+        } finally {
+            this.environment = previous;
+        }
+    }
+
+    Object evaluateIn(Expr expr, Environment environment) {
+        Environment previous = this.environment;
+        try {
+            this.environment = environment;
+            return evaluate(expr);
+        } finally {
+            this.environment = previous;
+        }
+    }
+
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
         Object value = evaluate(expr.value);
@@ -38,167 +103,68 @@ class Evaluator implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
 
-        switch (expr.operator.type) {
-            case GREATER:
-                if (left instanceof Double && right instanceof Integer) {
-                    right = ((Integer) right).doubleValue();
-                    return (double) left > (double) right;
-                }
-
-                if (left instanceof Integer && right instanceof Double) {
-                    left = ((Integer) left).doubleValue();
-                    return (double) left > (double) right;
-                }
-
-                if (left instanceof Double && right instanceof Double) {
-                    return (double) left > (double) right;
-                }
-                return (int) left > (int) right;
-
-            case GREATER_EQUAL:
-                if (left instanceof Double && right instanceof Integer) {
-                    right = ((Integer) right).doubleValue();
-                    return (double) left >= (double) right;
-                }
-
-                if (left instanceof Integer && right instanceof Double) {
-                    left = ((Integer) left).doubleValue();
-                    return (double) left >= (double) right;
-                }
-
-                if (left instanceof Double && right instanceof Double) {
-                    return (double) left >= (double) right;
-                }
-                return (int) left >= (int) right;
-            case LESS:
-                if (left instanceof Double && right instanceof Integer) {
-                    right = ((Integer) right).doubleValue();
-                    return (double) left < (double) right;
-                }
-
-                if (left instanceof Integer && right instanceof Double) {
-                    left = ((Integer) left).doubleValue();
-                    return (double) left < (double) right;
-                }
-
-                if (left instanceof Double && right instanceof Double) {
-                    return (double) left < (double) right;
-                }
-                return (int) left < (int) right;
-            case LESS_EQUAL:
-                if (left instanceof Double && right instanceof Integer) {
-                    right = ((Integer) right).doubleValue();
-                    return (double) left <= (double) right;
-                }
-
-                if (left instanceof Integer && right instanceof Double) {
-                    left = ((Integer) left).doubleValue();
-                    return (double) left <= (double) right;
-                }
-
-                if (left instanceof Double && right instanceof Double) {
-                    return (double) left <= (double) right;
-                }
-
-                return (int) left <= (int) right;
-            case SLASH_EQUAL:
-                return !isEqual(left, right);
-            case EQUAL_EQUAL:
-                return isEqual(left, right);
-            case PLUS:
-                if (left instanceof Double && right instanceof Integer) {
-                    right = ((Integer) right).doubleValue();
-                    return (double) left + (double) right;
-                }
-
-                if (left instanceof Integer && right instanceof Double) {
-                    left = ((Integer) left).doubleValue();
-                    return (double) left + (double) right;
-                }
-
-                if (left instanceof Double && right instanceof Double) {
-                    return (double) left + (double) right;
-                }
-
-                return (int) left + (int) right;
-            case MINUS:
-                if (left instanceof Double && right instanceof Integer) {
-                    right = ((Integer) right).doubleValue();
-                    return (double) left - (double) right;
-                }
-
-                if (left instanceof Integer && right instanceof Double) {
-                    left = ((Integer) left).doubleValue();
-                    return (double) left - (double) right;
-                }
-
-                if (left instanceof Double && right instanceof Double) {
-                    return (double) left - (double) right;
-                }
-
-                return (int) left - (int) right;
-            case SLASH:
-                if (left instanceof Double && right instanceof Integer) {
-                    right = ((Integer) right).doubleValue();
-                    return (double) left / (double) right;
-                }
-
-                if (left instanceof Integer && right instanceof Double) {
-                    left = ((Integer) left).doubleValue();
-                    return (double) left / (double) right;
-                }
-
-                if (left instanceof Double && right instanceof Double) {
-                    return (double) left / (double) right;
-                }
-
-                return (int) left / (int) right;
-            case STAR:
-                if (left instanceof Double && right instanceof Integer) {
-                    right = ((Integer) right).doubleValue();
-                    return (double) left * (double) right;
-                }
-
-                if (left instanceof Integer && right instanceof Double) {
-                    left = ((Integer) left).doubleValue();
-                    return (double) left * (double) right;
-                }
-
-                if (left instanceof Double && right instanceof Double) {
-                    return (double) left * (double) right;
-                }
-
-                return (int) left * (int) right;
-        }
-
-        return null;
+        if (recording != null) recording.binary(expr, left, right);
+        return Operators.binary(expr.operator.type, left, right);
     }
 
     @Override
     public Object visitCallExpr(Expr.Call expr) {
         Object callee = evaluate(expr.callee);
 
-        List<Object> arguments = new ArrayList<>();
-        for (Expr argument : expr.arguments) {
-            arguments.add(evaluate(argument));
-        }
-
-        if (!(callee instanceof RoutineCallable)) {
-            throw new RuntimeError(expr.paren, "Can only call functions.");
-        }
-
-        RoutineCallable function = (RoutineCallable) callee;
-        if (arguments.size() != function.arity()) {
-            throw new RuntimeError(expr.paren, "Expected " +
-                    function.arity() + " arguments but got " +
-                    arguments.size() + ".");
+        List<Expr> arguments = expr.arguments;
+        switch (arguments.size()) {
+            case 0:
+                return RoutineCallable.check(callee, 0, expr.paren).call0(this);
+            case 1: {
+                Object a = evaluate(arguments.get(0));
+                // library routines, the only ones to raise ArgumentError, take one or two
+                try {
+                    return RoutineCallable.check(callee, 1, expr.paren).call1(this, a);
+                } catch (Intrinsic.ArgumentError error) {
+                    throw new RuntimeError(expr.paren, error.getMessage());
+                }
+            }
+            case 2: {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                try {
+                    return RoutineCallable.check(callee, 2, expr.paren).call2(this, a, b);
+                } catch (Intrinsic.ArgumentError error) {
+                    throw new RuntimeError(expr.paren, error.getMessage());
+                }
+            }
+            case 3: {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                Object c = evaluate(arguments.get(2));
+                return RoutineCallable.check(callee, 3, expr.paren).call3(this, a, b, c);
+            }
+            case 4: {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                Object c = evaluate(arguments.get(2));
+                Object d = evaluate(arguments.get(3));
+                return RoutineCallable.check(callee, 4, expr.paren).call4(this, a, b, c, d);
+            }
+            default:
+                Object[] values = new Object[arguments.size()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = evaluate(arguments.get(i));
+                }
+                return RoutineCallable.check(callee, values.length, expr.paren).call(this, values);
         }
-
-        return function.call(this, arguments);
     }
 
     @Override
+    @SuppressWarnings("unchecked")
     public Object visitGetExpr(Expr.Get expr) {
+        if (expr.record instanceof Expr.GetIndex) {
+            // a field of an array member, read from its column when the array has them
+            Expr.GetIndex member = (Expr.GetIndex) expr.record;
+            Object array = evaluate(member.array);
+            if (array instanceof RecordArray) return ((RecordArray) array).get(member.index - 1, expr.name);
+            return ((IRecord) evaluate(((List<Expr>) array).get(member.index - 1))).get(expr.name);
+        }
         Object record = evaluate(expr.record);
 
         return ((IRecord) record).get(expr.name);
@@ -208,7 +174,7 @@ class Evaluator implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     @SuppressWarnings("unchecked")
     public Object visitGetIndexExpr(Expr.GetIndex expr) {
         Object value = evaluate(expr.array);
-        List<Expr> array = (ArrayList<Expr>) value;
+        List<Expr> array = (List<Expr>) value;
 
         return evaluate(array.get(expr.index - 1));
     }
@@ -223,13 +189,13 @@ class Evaluator implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         Object left = evaluate(expr.left);
 
         if (expr.operator.type == TokenType.OR) {
-            if (isTruthy(left)) return left;
+            if (Operators.isTruthy(left)) return left;
         } else if (expr.operator.type == TokenType.AND) {
-            if (!isTruthy(left)) return left;
+            if (!Operators.isTruthy(left)) return left;
 
         } else if (expr.operator.type == TokenType.XOR) {
 
-            return isTruthy(left) ^ isTruthy(evaluate(expr.right));
+            return Operators.isTruthy(left) ^ Operators.isTruthy(evaluate(expr.right));
 
         }
         return evaluate(expr.right);
@@ -246,10 +212,9 @@ class Evaluator implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
         switch (expr.operator.type) {
             case MINUS:
-                checkOperand(expr.operator, right);
-                return -(double) right;
+                return Operators.negate(expr.operator, right);
             case NOT:
-                return !isTruthy(right);
+                return !Operators.isTruthy(right);
         }
 
         return null;
@@ -260,48 +225,38 @@ class Evaluator implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return environment.get(expr.name);
     }
 
-    private void checkOperand(Token operator, Object operand) {
-        if (operand instanceof Double || operand instanceof Integer) return;
-        throw new RuntimeError(operator, "Operand must be a number.");
-    }
-
-    private boolean isTruthy(Object object) {
-        if (object == null)
-            return false;
-        if (object instanceof Boolean)
-            return (boolean) object;
-        return true;
-    }
-
-    private boolean isEqual(Object a, Object b) {
-        if (a == null && b == null) return true;
-        if (a == null) return false;
-
-        return a.equals(b);
-    }
-
-    private String stringify(Object object) {
-        if (object == null) return "<null>";
-
-        return object.toString();
-
-    }
-
     @Override
     public Void visitArrayStmt(Stmt.Array stmt) {
         environment.define(stmt.name, stmt.members,
                 new Type.ArrayType(stmt.name.lexeme));
+        allocated("array", stmt.name, stmt.members.size());
         return null;
     }
 
+    private static void allocated(String kind, Token name, int size) {
+        AllocationEvent event = new AllocationEvent();
+        if (event.shouldCommit()) {
+            event.kind = kind;
+            event.name = name.lexeme;
+            event.size = size;
+            event.commit();
+        }
+    }
+
     @Override
     public Void visitBodyStmt(Stmt.Body stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
+        Environment block = new Environment(environment, stack);
+        try {
+            executeBlock(stmt.statements, block);
+        } finally {
+            block.release();
+        }
         return null;
     }
 
     void executeBlock(List<Stmt> statements, Environment environment) {
         Environment previous = this.environment;
+        enterEnvironment();
         try {
             this.environment = environment;
 
@@ -310,6 +265,36 @@ class Evaluator implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             }
         } finally {
             this.environment = previous;
+            environmentDepth--;
+        }
+    }
+
+    void executeCompiled(ClosureCompiler.Action code, Environment environment) {
+        enterEnvironment();
+        try {
+            code.run(environment);
+        } finally {
+            environmentDepth--;
+        }
+    }
+
+    /**
+     * Runs a routine compiled from IR in a frame it entered, with the
+     * arguments set; the frame replaces an environment but still counts
+     * as one environment deeper.
+     */
+    Object executeCompiled(IrCompiler.Executable code, IrCompiler.Frame frame) {
+        enterEnvironment();
+        try {
+            return code.run(frame);
+        } finally {
+            environmentDepth--;
+        }
+    }
+
+    private void enterEnvironment() {
+        if (++environmentDepth > peakEnvironmentDepth) {
+            peakEnvironmentDepth = environmentDepth;
         }
     }
 
@@ -342,11 +327,21 @@ class Evaluator implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         if (stmt.reverse) {
             while (from > to) {
                 execute(stmt.body);
+                ClosureCompiler.LoopEntry entry = backEdge(stmt);
+                if (entry != null) {
+                    entry.run(environment, from, to);
+                    break;
+                }
                 environment.assign(stmt.name, --from);
             }
         } else {
             while (from < to) {
                 execute(stmt.body);
+                ClosureCompiler.LoopEntry entry = backEdge(stmt);
+                if (entry != null) {
+                    entry.run(environment, from, to);
+                    break;
+                }
                 environment.assign(stmt.name, ++from);
             }
         }
@@ -355,9 +350,12 @@ class Evaluator implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitIfStmt(Stmt.If stmt) {
-        if (isTruthy(evaluate(stmt.condition))) {
+        boolean taken = Operators.isTruthy(evaluate(stmt.condition));
+        if (recording != null) recording.branch(stmt, taken);
+
+        if (taken) {
             execute(stmt.thenBranch);
-        } else {
+        } else if (stmt.elseBranch != null) {
             execute(stmt.elseBranch);
         }
         return null;
@@ -366,7 +364,7 @@ class Evaluator implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     @Override
     public Void visitPrintStmt(Stmt.Print stmt) {
         Object value = evaluate(stmt.expression);
-        System.out.println(stringify(value));
+        System.out.println(Operators.stringify(value));
         return null;
     }
 
@@ -376,6 +374,7 @@ class Evaluator implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 new Type.RecordType(stmt.name.lexeme));
         IRecord record = new IRecord(this, stmt.name.lexeme, stmt.fields);
         environment.assign(stmt.name, record);
+        allocated("record", stmt.name, stmt.fields.size());
         return null;
     }
 
@@ -406,9 +405,74 @@ class Evaluator implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitWhileStmt(Stmt.While stmt) {
-        while (isTruthy(evaluate(stmt.condition))) {
+        while (Operators.isTruthy(evaluate(stmt.condition))) {
             execute(stmt.body);
+            ClosureCompiler.LoopEntry entry = backEdge(stmt);
+            if (entry != null) {
+                entry.run(environment, 0, 0);
+                break;
+            }
         }
         return null;
     }
+
+    /**
+     * Counts a back edge of the loop and returns its compiled rest once
+     * the loop is hot and the compiler thread has finished with it. The
+     * loop's variables already live in the environment chain, which the
+     * compiled code shares, so the interpreter can hand over mid-run.
+     */
+    private ClosureCompiler.LoopEntry backEdge(Stmt.Loop loop) {
+        if (!tiering || profiler != null) return null;
+        if (currentRoutine != null) currentRoutine.backEdge(this);
+
+        if (loop.slot >= loops.length) loops = Arrays.copyOf(loops, Math.max(loop.slot + 1, loops.length * 2));
+        LoopState state = loops[loop.slot];
+        if (state == null) {
+            state = new LoopState();
+            loops[loop.slot] = state;
+        }
+        state.backEdges++;
+        if (state.backEdges < OSR_THRESHOLD) return null;
+        if (tracing) return trace(loop, state);
+
+        if (!state.osrQueued) {
+            state.osrQueued = true;
+            LoopState queued = state;
+            ClosureCompiler.submit(() -> new ClosureCompiler(this).backEdge(loop), entry -> queued.osrEntry = entry);
+        }
+        return state.osrEntry;
+    }
+
+    /**
+     * Records the next iteration of a hot loop, from this back edge to
+     * the next one, and queues the recording for the trace compiler. A
+     * back edge of some other loop in between ends the recording early,
+     * and the trace compiler then falls back to compiling the whole loop.
+     */
+    private ClosureCompiler.LoopEntry trace(Stmt.Loop loop, LoopState state) {
+        if (recording != null) {
+            TraceCompiler.Recording finished = recording;
+            recording = null;
+            ClosureCompiler.submit(() -> new TraceCompiler(this, finished).compile(),
+                    entry -> finished.state.osrEntry = entry);
+            return null;
+        }
+
+        if (!state.osrQueued) {
+            state.osrQueued = true;
+            recording = new TraceCompiler.Recording(loop, state);
+        }
+        return state.osrEntry;
+    }
+
+    /**
+     * The number of times the interpreter took a loop's back edge, and
+     * the compiled rest of the loop for on-stack replacement once queued.
+     */
+    static class LoopState {
+        long backEdges;
+        boolean osrQueued;
+        volatile ClosureCompiler.LoopEntry osrEntry;
+    }
 }
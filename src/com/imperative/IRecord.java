@@ -6,7 +6,7 @@ import java.util.Map;
 
 public class IRecord implements RoutineCallable {
     private final String name;
-    private final Map<String, Object> fields = new HashMap<>();
+    private final Map<Symbol, Object> fields = new HashMap<>();
 
     IRecord(Evaluator evaluator, String name, List<Stmt.Var> varFields) {
         this.name = name;
@@ -15,16 +15,46 @@ public class IRecord implements RoutineCallable {
         }
     }
 
+    /**
+     * A record put back together from its fields.
+     */
+    IRecord(String name, Map<Symbol, Object> fields) {
+        this.name = name;
+        this.fields.putAll(fields);
+    }
+
+    String name() {
+        return name;
+    }
+
+    Map<Symbol, Object> fields() {
+        return fields;
+    }
+
     Object get(Token name) {
-        if (fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme);
+        Object value = fields.get(name.symbol);
+        if (value != null || fields.containsKey(name.symbol)) {
+            return value;
         }
 
         throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
     }
 
     private void set(Token name, Object value) {
-        fields.put(name.lexeme, value);
+        fields.put(name.symbol, value);
+    }
+
+    // fields are only set on creation, so records with the same contents are the same value
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) return true;
+        if (!(other instanceof IRecord)) return false;
+        return name.equals(((IRecord) other).name) && fields.equals(((IRecord) other).fields);
+    }
+
+    @Override
+    public int hashCode() {
+        return name.hashCode() * 31 + fields.hashCode();
     }
 
     @Override
@@ -38,7 +68,7 @@ public class IRecord implements RoutineCallable {
     }
 
     @Override
-    public Object call(Evaluator evaluator, List<Object> arguments) {
+    public Object call(Evaluator evaluator, Object[] arguments) {
         return this;
     }
 }
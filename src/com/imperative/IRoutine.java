@@ -1,9 +1,26 @@
 package com.imperative;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 class IRoutine implements RoutineCallable {
+    // calls, or loop back edges taken in the body, before the routine is compiled
+    static final int INVOCATION_THRESHOLD = Integer.getInteger("imperative.invocationThreshold", 1000);
+    static final int BACK_EDGE_THRESHOLD = Integer.getInteger("imperative.backEdgeThreshold", 10000);
+
     private final Stmt.Routine declaration;
+    private int invocations = 0;
+    private int backEdges = 0;
+    private boolean queued = false;
+    // the body after the optimizer, built on the first call
+    private List<Stmt> body = null;
+    // set by the compiler thread, the body is interpreted until then
+    private volatile ClosureCompiler.Action compiled = null;
+    // or, when the optimizer could lower the body to IR, this instead
+    private volatile IrCompiler.Executable executable = null;
+    // clones per pattern of constant arguments, null for patterns that cannot be lowered
+    private final Map<List<Object>, Specializer.Clone> clones = new HashMap<>();
 
     IRoutine(Stmt.Routine declaration) {
         this.declaration = declaration;
@@ -15,21 +32,181 @@ class IRoutine implements RoutineCallable {
     }
 
     @Override
-    public Object call(Evaluator evaluator, List<Object> arguments) {
-        Environment environment = new Environment(evaluator.globals);
-        for (int i = 0; i < declaration.params.size(); i++) {
-            environment.define(declaration.params.get(i), arguments.get(i), null);
+    public Object call0(Evaluator evaluator) {
+        IrCompiler.Executable code = executable(evaluator);
+        if (code == null) return call(evaluator, new Object[0]);
+        return run(evaluator, code, code.enter(), 0);
+    }
+
+    @Override
+    public Object call1(Evaluator evaluator, Object a) {
+        IrCompiler.Executable code = executable(evaluator);
+        if (code == null) return call(evaluator, new Object[]{a});
+        IrCompiler.Frame frame = code.enter();
+        code.set(frame, 0, a);
+        return run(evaluator, code, frame, 1);
+    }
+
+    @Override
+    public Object call2(Evaluator evaluator, Object a, Object b) {
+        IrCompiler.Executable code = executable(evaluator);
+        if (code == null) return call(evaluator, new Object[]{a, b});
+        IrCompiler.Frame frame = code.enter();
+        code.set(frame, 0, a);
+        code.set(frame, 1, b);
+        return run(evaluator, code, frame, 2);
+    }
+
+    @Override
+    public Object call3(Evaluator evaluator, Object a, Object b, Object c) {
+        IrCompiler.Executable code = executable(evaluator);
+        if (code == null) return call(evaluator, new Object[]{a, b, c});
+        IrCompiler.Frame frame = code.enter();
+        code.set(frame, 0, a);
+        code.set(frame, 1, b);
+        code.set(frame, 2, c);
+        return run(evaluator, code, frame, 3);
+    }
+
+    @Override
+    public Object call4(Evaluator evaluator, Object a, Object b, Object c, Object d) {
+        IrCompiler.Executable code = executable(evaluator);
+        if (code == null) return call(evaluator, new Object[]{a, b, c, d});
+        IrCompiler.Frame frame = code.enter();
+        code.set(frame, 0, a);
+        code.set(frame, 1, b);
+        code.set(frame, 2, c);
+        code.set(frame, 3, d);
+        return run(evaluator, code, frame, 4);
+    }
+
+    @Override
+    public Object call(Evaluator evaluator, Object[] arguments) {
+        evaluator.routineCalls++;
+        RoutineEvent event = new RoutineEvent();
+        event.begin();
+        Profiler profiler = evaluator.profiler;
+        if (profiler != null) profiler.enterRoutine(declaration);
+
+        try {
+            return invoke(evaluator, arguments);
+        } finally {
+            if (profiler != null) profiler.exitRoutine();
+            commit(event, arguments.length);
         }
+    }
 
+    /**
+     * The body compiled from IR, unless there is none yet or the profiler
+     * is on, which needs every statement and only the interpreter reports
+     * them.
+     */
+    private IrCompiler.Executable executable(Evaluator evaluator) {
+        IrCompiler.Executable executable = this.executable;
+        return evaluator.profiler == null ? executable : null;
+    }
+
+    /**
+     * Runs the compiled body in a frame a fixed-arity call entered and
+     * set the arguments in, which is the only allocation of the call and
+     * is pooled.
+     */
+    private Object run(Evaluator evaluator, IrCompiler.Executable code, IrCompiler.Frame frame, int arguments) {
+        evaluator.routineCalls++;
+        RoutineEvent event = new RoutineEvent();
+        event.begin();
         try {
-            evaluator.executeBlock(declaration.body, environment);
+            return evaluator.executeCompiled(code, frame);
+        } finally {
+            commit(event, arguments);
+        }
+    }
+
+    private void commit(RoutineEvent event, int arguments) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.name = declaration.name.lexeme;
+            event.arguments = arguments;
+            event.commit();
+        }
+    }
+
+    private Object invoke(Evaluator evaluator, Object[] arguments) {
+        IrCompiler.Executable executable = executable(evaluator);
+        if (executable != null) {
+            IrCompiler.Frame frame = executable.enter();
+            for (int i = 0; i < arguments.length; i++) {
+                executable.set(frame, i, arguments[i]);
+            }
+            return evaluator.executeCompiled(executable, frame);
+        }
+
+        Environment environment = new Environment(evaluator.globals, evaluator.stack);
+        IRoutine caller = evaluator.currentRoutine;
+        evaluator.currentRoutine = this;
+        try {
+            for (int i = 0; i < declaration.params.size(); i++) {
+                environment.define(declaration.params.get(i), arguments[i], null);
+            }
+
+            ClosureCompiler.Action code = compiled;
+            if (code != null && evaluator.profiler == null) {
+                evaluator.executeCompiled(code, environment);
+            } else {
+                if (evaluator.tiering && ++invocations >= INVOCATION_THRESHOLD) compile(evaluator);
+                evaluator.executeBlock(body(evaluator), environment);
+            }
         } catch (Return returnValue) {
             return returnValue.value;
+        } finally {
+            environment.release();
+            evaluator.currentRoutine = caller;
         }
 
         return null;
     }
 
+    void backEdge(Evaluator evaluator) {
+        if (++backEdges >= BACK_EDGE_THRESHOLD) compile(evaluator);
+    }
+
+    private void compile(Evaluator evaluator) {
+        if (queued) return;
+        queued = true;
+        List<Stmt> statements = body(evaluator);
+        if (evaluator.optimize) {
+            Map<Symbol, Inliner.Target> callees = Inliner.targets(evaluator, statements);
+            ClosureCompiler.submit(() -> IrCompiler.compile(evaluator, declaration, statements, callees), code -> {
+                if (code != null) {
+                    executable = code;
+                } else {
+                    compiled = new ClosureCompiler(evaluator).sequence(statements);
+                }
+            });
+            return;
+        }
+        ClosureCompiler.submit(() -> new ClosureCompiler(evaluator).sequence(statements),
+                code -> compiled = code);
+    }
+
+    /**
+     * The specialized clones of this routine, kept by the compiler thread.
+     */
+    Map<List<Object>, Specializer.Clone> clones() {
+        return clones;
+    }
+
+    Stmt.Routine declaration() {
+        return declaration;
+    }
+
+    List<Stmt> body(Evaluator evaluator) {
+        if (body == null) {
+            body = evaluator.optimize ? Optimizer.optimize(declaration) : declaration.body();
+        }
+        return body;
+    }
+
     @Override
     public String toString() {
         return "<routine " + declaration.name.lexeme + ">";
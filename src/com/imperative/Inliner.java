@@ -0,0 +1,230 @@
+package com.imperative;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Replaces calls to small routines with a copy of their IR. Callees are
+ * looked up by name at run time, so the copy sits behind a guard that the
+ * name still holds the routine that was copied, with the real call on the
+ * other side; both paths meet in a phi of the result. The callee's locals
+ * become fresh SSA values of the caller, so nothing can capture them, its
+ * parameters become the argument values and its returns jumps to the
+ * join. Routines that call themselves are never copied, and a routine
+ * stops taking copies once it has grown past the size budget, which also
+ * ends chains of routines calling each other.
+ */
+class Inliner implements IrPass {
+    // instructions a callee may have, after its own optimization
+    static final int CALLEE_SIZE = Integer.getInteger("imperative.inlineSize", 40);
+    // instructions past which a caller takes no more copies
+    static final int CALLER_SIZE = 1000;
+    // how deep targets are collected through callees calling other routines
+    private static final int DEPTH = 3;
+
+    /**
+     * A routine some call may reach, with the body it runs; collected on
+     * the interpreter thread, which owns the globals and the optimizer.
+     */
+    static class Target {
+        final IRoutine routine;
+        final Stmt.Routine declaration;
+        final List<Stmt> body;
+
+        Target(IRoutine routine, Stmt.Routine declaration, List<Stmt> body) {
+            this.routine = routine;
+            this.declaration = declaration;
+            this.body = body;
+        }
+    }
+
+    private final Map<Symbol, Target> targets;
+    // lowered and optimized callees, null for those that cannot be copied
+    private final Map<Symbol, Ir.Function> callees = new HashMap<>();
+    // calls left on the slow side of a guard, which stay calls
+    private final Set<Ir.Call> guarded = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    Inliner(Map<Symbol, Target> targets) {
+        this.targets = targets;
+    }
+
+    /**
+     * The routines the globals currently bind to names called in the
+     * body, and in their bodies in turn.
+     */
+    static Map<Symbol, Target> targets(Evaluator evaluator, List<Stmt> body) {
+        Map<Symbol, Target> targets = new HashMap<>();
+        collect(evaluator, body, targets, DEPTH);
+        return targets;
+    }
+
+    private static void collect(Evaluator evaluator, List<Stmt> body, Map<Symbol, Target> targets, int depth) {
+        if (depth == 0) return;
+
+        List<Token> names = new ArrayList<>();
+        new Walker() {
+            @Override
+            public Void visitCallExpr(Expr.Call expr) {
+                if (expr.callee instanceof Expr.Variable) names.add(((Expr.Variable) expr.callee).name);
+                return super.visitCallExpr(expr);
+            }
+        }.block(body);
+
+        for (Token name : names) {
+            Object value = evaluator.globals.lookup(name);
+            if (!(value instanceof IRoutine) || targets.containsKey(name.symbol)) continue;
+
+            IRoutine routine = (IRoutine) value;
+            Target target = new Target(routine, routine.declaration(), routine.body(evaluator));
+            targets.put(name.symbol, target);
+            collect(evaluator, target.body, targets, depth - 1);
+        }
+    }
+
+    @Override
+    public String name() {
+        return "inline";
+    }
+
+    @Override
+    public boolean run(Ir.Function function) {
+        boolean changed = false;
+        for (int i = 0; i < function.blocks.size() && size(function) < CALLER_SIZE; i++) {
+            Ir.Block block = function.blocks.get(i);
+            for (Ir.Instruction instruction : block.instructions) {
+                if (!(instruction instanceof Ir.Call) || guarded.contains(instruction)) continue;
+
+                Ir.Call call = (Ir.Call) instruction;
+                Ir.Function callee = callee(function, call);
+                if (callee == null) continue;
+
+                inline(function, call, callee, targets.get(((Ir.LoadGlobal) call.operand(0)).name.symbol));
+                guarded.add(call);
+                changed = true;
+                // the rest of the block moved to a new block, which comes up later
+                break;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Whether the call was left on the slow side of a guard.
+     */
+    boolean guarded(Ir.Call call) {
+        return guarded.contains(call);
+    }
+
+    private Ir.Function callee(Ir.Function caller, Ir.Call call) {
+        if (!(call.operand(0) instanceof Ir.LoadGlobal)) return null;
+        Token name = ((Ir.LoadGlobal) call.operand(0)).name;
+        if (name.lexeme.equals(caller.name)) return null;
+
+        Target target = targets.get(name.symbol);
+        if (target == null || target.declaration.params.size() != call.operands.size() - 1) return null;
+
+        if (!callees.containsKey(name.symbol)) callees.put(name.symbol, lower(target));
+        return callees.get(name.symbol);
+    }
+
+    private static Ir.Function lower(Target target) {
+        Ir.Function function = IrBuilder.build(target.declaration, target.body);
+        if (function == null) return null;
+
+        PassManager.standard(null, null).run(function);
+        if (size(function) > CALLEE_SIZE || callsItself(function)) return null;
+        return function;
+    }
+
+    private static int size(Ir.Function function) {
+        int size = 0;
+        for (Ir.Block block : function.blocks) {
+            size += block.phis.size() + block.instructions.size();
+        }
+        return size;
+    }
+
+    private static boolean callsItself(Ir.Function function) {
+        for (Ir.Block block : function.blocks) {
+            for (Ir.Instruction instruction : block.instructions) {
+                if (instruction instanceof Ir.LoadGlobal
+                        && ((Ir.LoadGlobal) instruction).name.lexeme.equals(function.name)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static void inline(Ir.Function function, Ir.Call call, Ir.Function callee, Target target) {
+        Ir.Block block = call.block;
+        int at = block.instructions.indexOf(call);
+
+        // the instructions after the call and the block's exit move to the join
+        Ir.Block join = function.newBlock();
+        List<Ir.Instruction> rest = block.instructions.subList(at + 1, block.instructions.size());
+        for (Ir.Instruction instruction : rest) {
+            instruction.block = join;
+            join.instructions.add(instruction);
+        }
+        rest.clear();
+        join.terminator = block.terminator;
+        for (Ir.Block successor : join.successors()) {
+            successor.predecessors.replaceAll(predecessor -> predecessor == block ? join : predecessor);
+        }
+
+        // the real call, when the name no longer holds the copied routine
+        Ir.Block slow = function.newBlock();
+        block.instructions.remove(at);
+        call.block = slow;
+        slow.instructions.add(call);
+        slow.terminator = new Ir.Jump(join);
+        join.predecessors.add(slow);
+
+        Ir.Binary guard = function.number(new Ir.Binary(
+                new Token(TokenType.EQUAL_EQUAL, "==", null, call.paren.line),
+                call.operand(0), function.constant(target.routine)));
+        guard.block = block;
+        block.instructions.add(guard);
+
+        Ir.Phi result = function.number(new Ir.Phi());
+        function.replaceAllUses(call, result);
+        result.block = join;
+        join.phis.add(result);
+        result.operands.add(call);
+
+        Ir.Block entry = copy(function, callee, call, join, result);
+        block.terminator = new Ir.Branch(guard, entry, slow);
+        entry.predecessors.add(block);
+        slow.predecessors.add(block);
+    }
+
+    /**
+     * Copies the callee's blocks into the function and returns the copy
+     * of its entry. Each return becomes an edge to the join, adding its
+     * value to the result phi.
+     */
+    private static Ir.Block copy(Ir.Function function, Ir.Function callee, Ir.Call call,
+                                 Ir.Block join, Ir.Phi result) {
+        Map<Ir.Value, Ir.Value> values = new IdentityHashMap<>();
+        for (Ir.Parameter parameter : callee.parameters) {
+            values.put(parameter, call.operand(parameter.index + 1));
+        }
+
+        Map<Ir.Block, Ir.Block> blocks = function.copy(callee.blocks, values);
+        for (Ir.Block block : callee.blocks) {
+            Ir.Block copy = blocks.get(block);
+            if (!(copy.terminator instanceof Ir.Return)) continue;
+
+            result.operands.add(copy.terminator.operands.get(0));
+            copy.terminator = new Ir.Jump(join);
+            join.predecessors.add(copy);
+        }
+        return blocks.get(callee.entry());
+    }
+}
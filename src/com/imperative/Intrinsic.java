@@ -0,0 +1,246 @@
+package com.imperative;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The library routines every program starts with, implemented in Java and
+ * bound in the globals under their names, which the program may declare
+ * or assign for its own. A call through one of the names that no
+ * enclosing block declares is made directly by the IR, on unboxed
+ * operands where the types allow, behind a check that the global still
+ * holds the routine.
+ * Like the operators, integers stay integers where the result is whole;
+ * the array routines are in {@link ArrayOperations}.
+ */
+enum Intrinsic implements RoutineCallable {
+    SQRT("sqrt", 1) {
+        @Override
+        public Object call1(Evaluator evaluator, Object a) {
+            return Math.sqrt(real(a));
+        }
+
+        @Override
+        Ir.ValueType type(Ir.ValueType a, Ir.ValueType b) {
+            return Ir.ValueType.isNumber(a) ? Ir.ValueType.REAL : Ir.ValueType.ANY;
+        }
+    },
+    ABS("abs", 1) {
+        @Override
+        public Object call1(Evaluator evaluator, Object a) {
+            if (a instanceof Integer) return Math.abs((int) a);
+            return Math.abs(real(a));
+        }
+
+        @Override
+        Ir.ValueType type(Ir.ValueType a, Ir.ValueType b) {
+            return Ir.ValueType.isNumber(a) ? a : Ir.ValueType.ANY;
+        }
+    },
+    FLOOR("floor", 1) {
+        @Override
+        public Object call1(Evaluator evaluator, Object a) {
+            if (a instanceof Integer) return a;
+            return (int) Math.floor(real(a));
+        }
+
+        @Override
+        Ir.ValueType type(Ir.ValueType a, Ir.ValueType b) {
+            return Ir.ValueType.isNumber(a) ? Ir.ValueType.INTEGER : Ir.ValueType.ANY;
+        }
+    },
+    MIN("min", 2) {
+        @Override
+        public Object call2(Evaluator evaluator, Object a, Object b) {
+            if (a instanceof Integer && b instanceof Integer) return Math.min((int) a, (int) b);
+            return Math.min(real(a), real(b));
+        }
+
+        @Override
+        Ir.ValueType type(Ir.ValueType a, Ir.ValueType b) {
+            return numbers(a, b);
+        }
+    },
+    MAX("max", 2) {
+        @Override
+        public Object call2(Evaluator evaluator, Object a, Object b) {
+            if (a instanceof Integer && b instanceof Integer) return Math.max((int) a, (int) b);
+            return Math.max(real(a), real(b));
+        }
+
+        @Override
+        Ir.ValueType type(Ir.ValueType a, Ir.ValueType b) {
+            return numbers(a, b);
+        }
+    },
+    POW("pow", 2) {
+        @Override
+        public Object call2(Evaluator evaluator, Object a, Object b) {
+            return Math.pow(real(a), real(b));
+        }
+
+        @Override
+        Ir.ValueType type(Ir.ValueType a, Ir.ValueType b) {
+            return Ir.ValueType.isNumber(a) && Ir.ValueType.isNumber(b) ? Ir.ValueType.REAL : Ir.ValueType.ANY;
+        }
+    },
+    LENGTH("length", 1, 0) {
+        @Override
+        public Object call1(Evaluator evaluator, Object a) {
+            if (!(a instanceof List)) throw new ArgumentError("length needs an array.");
+            return ((List<?>) a).size();
+        }
+
+        @Override
+        Ir.ValueType type(Ir.ValueType a, Ir.ValueType b) {
+            return Ir.ValueType.INTEGER;
+        }
+    },
+    SORT("sort", 1, 1) {
+        @Override
+        public Object call1(Evaluator evaluator, Object a) {
+            return ArrayOperations.sort(evaluator, a, null);
+        }
+
+        @Override
+        public Object call2(Evaluator evaluator, Object a, Object b) {
+            return ArrayOperations.sort(evaluator, a, b);
+        }
+    },
+    FILL("fill", 2, 0) {
+        @Override
+        public Object call2(Evaluator evaluator, Object a, Object b) {
+            return ArrayOperations.fill(a, b);
+        }
+    },
+    COPY("copy", 1, 0) {
+        @Override
+        public Object call1(Evaluator evaluator, Object a) {
+            return ArrayOperations.copy(evaluator, a);
+        }
+    },
+    SCAN("scan", 1, 1) {
+        @Override
+        public Object call1(Evaluator evaluator, Object a) {
+            return ArrayOperations.scan(evaluator, a, null);
+        }
+
+        @Override
+        public Object call2(Evaluator evaluator, Object a, Object b) {
+            return ArrayOperations.scan(evaluator, a, b);
+        }
+    },
+    REDUCE("reduce", 1, 1) {
+        @Override
+        public Object call1(Evaluator evaluator, Object a) {
+            return ArrayOperations.reduce(evaluator, a, null);
+        }
+
+        @Override
+        public Object call2(Evaluator evaluator, Object a, Object b) {
+            return ArrayOperations.reduce(evaluator, a, b);
+        }
+    };
+
+    /**
+     * Thrown by a library routine given arguments it cannot work with; the
+     * call passing them reports it as a RuntimeError at its parenthesis.
+     */
+    static class ArgumentError extends RuntimeException {
+        ArgumentError(String message) {
+            super(message);
+        }
+    }
+
+    private static final Map<Symbol, Intrinsic> names = new HashMap<>();
+
+    static {
+        for (Intrinsic intrinsic : values()) {
+            names.put(Symbol.intern(intrinsic.name), intrinsic);
+        }
+    }
+
+    final String name;
+    private final int arity;
+    // the trailing arguments a call may leave out
+    private final int optional;
+    // math on numbers, which cannot fail on operands typed as numbers
+    private final boolean math;
+
+    Intrinsic(String name, int arity) {
+        this.name = name;
+        this.arity = arity;
+        this.optional = 0;
+        this.math = true;
+    }
+
+    Intrinsic(String name, int arity, int optional) {
+        this.name = name;
+        this.arity = arity;
+        this.optional = optional;
+        this.math = false;
+    }
+
+    @Override
+    public int arity() {
+        return arity;
+    }
+
+    @Override
+    public boolean accepts(int arguments) {
+        return arguments >= arity && arguments <= arity + optional;
+    }
+
+    @Override
+    public Object call(Evaluator evaluator, Object[] arguments) {
+        return arguments.length == 1 ? call1(evaluator, arguments[0]) : call2(evaluator, arguments[0], arguments[1]);
+    }
+
+    /**
+     * What a call returns given what its operands are known to hold, the
+     * second null for calls passing one.
+     */
+    Ir.ValueType type(Ir.ValueType a, Ir.ValueType b) {
+        return Ir.ValueType.ANY;
+    }
+
+    /**
+     * Whether a call given operands of these types cannot fail, so it can
+     * be moved, dropped or computed ahead like arithmetic.
+     */
+    boolean pure(Ir.ValueType a, Ir.ValueType b) {
+        return math && Ir.ValueType.isNumber(a) && (b == null || Ir.ValueType.isNumber(b));
+    }
+
+    @Override
+    public String toString() {
+        return "<routine " + name + ">";
+    }
+
+    /**
+     * The library routine a name at the top level is bound to, or null.
+     */
+    static Intrinsic named(Symbol symbol) {
+        return names.get(symbol);
+    }
+
+    static void defineAll(Environment globals) {
+        for (Intrinsic intrinsic : values()) {
+            globals.define(new Token(TokenType.IDENTIFIER, intrinsic.name, null, 0), intrinsic,
+                    new Type.RoutineType(intrinsic.name));
+        }
+    }
+
+    double real(Object value) {
+        if (value instanceof Integer) return (int) value;
+        if (value instanceof Double) return (double) value;
+        throw new ArgumentError(name + " needs numbers.");
+    }
+
+    private static Ir.ValueType numbers(Ir.ValueType a, Ir.ValueType b) {
+        if (a == Ir.ValueType.INTEGER && b == Ir.ValueType.INTEGER) return Ir.ValueType.INTEGER;
+        if (Ir.ValueType.isNumber(a) && Ir.ValueType.isNumber(b)) return Ir.ValueType.REAL;
+        return Ir.ValueType.ANY;
+    }
+}
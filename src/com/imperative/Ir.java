@@ -0,0 +1,817 @@
+package com.imperative;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The mid-level representation of a routine: a control flow graph of basic
+ * blocks in SSA form. Every local variable is split into values that are
+ * assigned exactly once, with phis where control flow joins, so passes see
+ * def-use chains directly instead of names looked up in environments.
+ * Globals stay names, read and written through instructions. Built by
+ * {@link IrBuilder}, optimized by a {@link PassManager} and turned back
+ * into something runnable by {@link IrCompiler}.
+ */
+abstract class Ir {
+
+    /**
+     * What a value is known to hold, from literal types and the operators
+     * applied to them; declared types are not checked at run time, so
+     * parameters and globals are ANY.
+     */
+    enum ValueType {
+        INTEGER, REAL, BOOLEAN, NULL, ANY;
+
+        static ValueType of(Type type) {
+            if (!(type instanceof Type.PrimitiveType)) return ANY;
+            switch (((Type.PrimitiveType) type).type) {
+                case INTEGER:
+                    return INTEGER;
+                case REAL:
+                    return REAL;
+                default:
+                    return BOOLEAN;
+            }
+        }
+
+        static ValueType of(Object value) {
+            if (value == null) return NULL;
+            if (value instanceof Integer) return INTEGER;
+            if (value instanceof Double) return REAL;
+            if (value instanceof Boolean) return BOOLEAN;
+            return ANY;
+        }
+
+        ValueType join(ValueType other) {
+            if (other == null || other == this) return this;
+            return ANY;
+        }
+
+        static boolean isNumber(ValueType type) {
+            return type == INTEGER || type == REAL;
+        }
+    }
+
+    abstract static class Value {
+        int id;
+        // null until type inference reaches the value
+        ValueType type;
+
+        String name() {
+            return "v" + id;
+        }
+    }
+
+    static class Constant extends Value {
+        final Object value;
+
+        Constant(Object value) {
+            this.value = value;
+            this.type = ValueType.of(value);
+        }
+
+        @Override
+        String name() {
+            return value instanceof Double ? value + "r" : String.valueOf(value);
+        }
+    }
+
+    static class Parameter extends Value {
+        final Token token;
+        final int index;
+
+        Parameter(Token token, int index) {
+            this.token = token;
+            this.index = index;
+            this.type = ValueType.ANY;
+        }
+
+        @Override
+        String name() {
+            return token.lexeme;
+        }
+    }
+
+    abstract static class Instruction extends Value {
+        Block block;
+        final List<Value> operands = new ArrayList<>();
+
+        Instruction(Value... operands) {
+            for (Value operand : operands) {
+                this.operands.add(operand);
+            }
+        }
+
+        Value operand(int index) {
+            return operands.get(index);
+        }
+
+        /**
+         * Whether dropping the instruction when its value is unused could
+         * change what the routine does, by skipping output, a write, a call
+         * or an error.
+         */
+        abstract boolean hasEffect();
+
+        /**
+         * The type of the result given the operand types so far, null when
+         * an operand is still unknown.
+         */
+        abstract ValueType infer();
+
+        abstract String opcode();
+
+        /**
+         * A new instruction doing the same with the same operands, in no
+         * block and not numbered yet.
+         */
+        abstract Instruction copy();
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder(name()).append(" = ").append(opcode());
+            for (int i = 0; i < operands.size(); i++) {
+                text.append(i == 0 ? " " : ", ").append(operands.get(i).name());
+            }
+            return text.append(" : ").append(type).toString();
+        }
+    }
+
+    /**
+     * Takes the operand at the position of the predecessor control came from.
+     */
+    static class Phi extends Instruction {
+        @Override
+        boolean hasEffect() {
+            return false;
+        }
+
+        @Override
+        ValueType infer() {
+            ValueType type = null;
+            for (Value operand : operands) {
+                if (operand == this || operand.type == null) continue;
+                type = type == null ? operand.type : type.join(operand.type);
+            }
+            return type;
+        }
+
+        @Override
+        String opcode() {
+            return "phi";
+        }
+
+        @Override
+        Phi copy() {
+            Phi copy = new Phi();
+            copy.operands.addAll(operands);
+            return copy;
+        }
+    }
+
+    static class Binary extends Instruction {
+        final Token operator;
+
+        Binary(Token operator, Value left, Value right) {
+            super(left, right);
+            this.operator = operator;
+        }
+
+        boolean isComparison() {
+            switch (operator.type) {
+                case GREATER:
+                case GREATER_EQUAL:
+                case LESS:
+                case LESS_EQUAL:
+                case EQUAL_EQUAL:
+                case SLASH_EQUAL:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        @Override
+        boolean hasEffect() {
+            TokenType type = operator.type;
+            if (type == TokenType.EQUAL_EQUAL || type == TokenType.SLASH_EQUAL || type == TokenType.PERCENT) {
+                return false;
+            }
+            ValueType left = operand(0).type;
+            ValueType right = operand(1).type;
+            if (!ValueType.isNumber(left) || !ValueType.isNumber(right)) return true;
+
+            // integer division by zero throws
+            if (type == TokenType.SLASH && left == ValueType.INTEGER && right == ValueType.INTEGER) {
+                return !(operand(1) instanceof Constant) || ((Constant) operand(1)).value.equals(0);
+            }
+            return false;
+        }
+
+        @Override
+        ValueType infer() {
+            if (isComparison()) return ValueType.BOOLEAN;
+            if (operator.type == TokenType.PERCENT) return ValueType.NULL;
+
+            ValueType left = operand(0).type;
+            ValueType right = operand(1).type;
+            if (left == null || right == null) return null;
+            if (left == ValueType.INTEGER && right == ValueType.INTEGER) return ValueType.INTEGER;
+            if (ValueType.isNumber(left) && ValueType.isNumber(right)) return ValueType.REAL;
+            return ValueType.ANY;
+        }
+
+        @Override
+        String opcode() {
+            return operator.lexeme;
+        }
+
+        @Override
+        Binary copy() {
+            return new Binary(operator, operand(0), operand(1));
+        }
+    }
+
+    static class Unary extends Instruction {
+        final Token operator;
+
+        Unary(Token operator, Value operand) {
+            super(operand);
+            this.operator = operator;
+        }
+
+        @Override
+        boolean hasEffect() {
+            return operator.type == TokenType.MINUS && !ValueType.isNumber(operand(0).type);
+        }
+
+        @Override
+        ValueType infer() {
+            if (operator.type == TokenType.NOT) return ValueType.BOOLEAN;
+            if (operator.type != TokenType.MINUS) return ValueType.NULL;
+            ValueType type = operand(0).type;
+            if (type == null) return null;
+            return ValueType.isNumber(type) ? type : ValueType.ANY;
+        }
+
+        @Override
+        String opcode() {
+            return operator.type == TokenType.NOT ? "not" : "neg";
+        }
+
+        @Override
+        Unary copy() {
+            return new Unary(operator, operand(0));
+        }
+    }
+
+    static class Xor extends Instruction {
+        Xor(Value left, Value right) {
+            super(left, right);
+        }
+
+        @Override
+        boolean hasEffect() {
+            return false;
+        }
+
+        @Override
+        ValueType infer() {
+            return ValueType.BOOLEAN;
+        }
+
+        @Override
+        String opcode() {
+            return "xor";
+        }
+
+        @Override
+        Xor copy() {
+            return new Xor(operand(0), operand(1));
+        }
+    }
+
+    /**
+     * The unchecked cast a for loop applies to its bounds.
+     */
+    static class ToInteger extends Instruction {
+        ToInteger(Value operand) {
+            super(operand);
+        }
+
+        @Override
+        boolean hasEffect() {
+            return operand(0).type != ValueType.INTEGER;
+        }
+
+        @Override
+        ValueType infer() {
+            return ValueType.INTEGER;
+        }
+
+        @Override
+        String opcode() {
+            return "int";
+        }
+
+        @Override
+        ToInteger copy() {
+            return new ToInteger(operand(0));
+        }
+    }
+
+    /**
+     * Whether a counted loop at this counter has at least count more
+     * iterations before reaching the bound, counting down when reverse.
+     * Computed without overflow, so it holds exactly when the next count
+     * exit tests would all pass.
+     */
+    static class Remains extends Instruction {
+        final int count;
+        final boolean reverse;
+
+        Remains(Value counter, Value bound, int count, boolean reverse) {
+            super(counter, bound);
+            this.count = count;
+            this.reverse = reverse;
+        }
+
+        boolean test(int counter, int bound) {
+            long remaining = reverse ? (long) counter - bound : (long) bound - counter;
+            return remaining >= count;
+        }
+
+        @Override
+        boolean hasEffect() {
+            return operand(0).type != ValueType.INTEGER || operand(1).type != ValueType.INTEGER;
+        }
+
+        @Override
+        ValueType infer() {
+            return ValueType.BOOLEAN;
+        }
+
+        @Override
+        String opcode() {
+            return (reverse ? "remains down " : "remains ") + count;
+        }
+
+        @Override
+        Remains copy() {
+            return new Remains(operand(0), operand(1), count, reverse);
+        }
+    }
+
+    static class LoadGlobal extends Instruction {
+        final Token name;
+
+        LoadGlobal(Token name) {
+            this.name = name;
+        }
+
+        @Override
+        boolean hasEffect() {
+            // an undefined name is an error
+            return true;
+        }
+
+        @Override
+        ValueType infer() {
+            return ValueType.ANY;
+        }
+
+        @Override
+        String opcode() {
+            return "load " + name.lexeme;
+        }
+
+        @Override
+        LoadGlobal copy() {
+            return new LoadGlobal(name);
+        }
+    }
+
+    static class StoreGlobal extends Instruction {
+        final Token name;
+
+        StoreGlobal(Token name, Value value) {
+            super(value);
+            this.name = name;
+        }
+
+        @Override
+        boolean hasEffect() {
+            return true;
+        }
+
+        @Override
+        ValueType infer() {
+            return ValueType.NULL;
+        }
+
+        @Override
+        String opcode() {
+            return "store " + name.lexeme;
+        }
+
+        @Override
+        StoreGlobal copy() {
+            return new StoreGlobal(name, operand(0));
+        }
+    }
+
+    /**
+     * Operand 0 is the callee, the rest are the arguments.
+     */
+    static class Call extends Instruction {
+        final Token paren;
+
+        Call(Token paren, Value callee, List<Value> arguments) {
+            super(callee);
+            this.paren = paren;
+            operands.addAll(arguments);
+        }
+
+        @Override
+        boolean hasEffect() {
+            return true;
+        }
+
+        @Override
+        ValueType infer() {
+            return ValueType.ANY;
+        }
+
+        @Override
+        String opcode() {
+            return "call";
+        }
+
+        @Override
+        Call copy() {
+            return new Call(paren, operand(0), operands.subList(1, operands.size()));
+        }
+    }
+
+    /**
+     * A call passing constants to a routine, which runs the clone of the
+     * routine specialized for them while the name still holds it. Only
+     * the operands without a constant in the clone are passed to it.
+     */
+    static class Specialized extends Instruction {
+        final Token paren;
+        final Specializer.Clone clone;
+
+        Specialized(Token paren, Specializer.Clone clone, List<Value> operands) {
+            this.paren = paren;
+            this.clone = clone;
+            this.operands.addAll(operands);
+        }
+
+        @Override
+        boolean hasEffect() {
+            return true;
+        }
+
+        @Override
+        ValueType infer() {
+            return ValueType.ANY;
+        }
+
+        @Override
+        String opcode() {
+            StringBuilder text = new StringBuilder("call [");
+            for (int i = 0; i < clone.constants.size(); i++) {
+                Object constant = clone.constants.get(i);
+                text.append(i == 0 ? "" : ", ").append(constant == null ? "_" : constant);
+            }
+            return text.append(']').toString();
+        }
+
+        @Override
+        Specialized copy() {
+            return new Specialized(paren, clone, operands);
+        }
+    }
+
+    /**
+     * A call to a library routine, whose name the program cannot rebind,
+     * so it needs no callee; the operands are the arguments.
+     */
+    static class Native extends Instruction {
+        final Token paren;
+        final Intrinsic intrinsic;
+
+        Native(Token paren, Intrinsic intrinsic, List<Value> arguments) {
+            this.paren = paren;
+            this.intrinsic = intrinsic;
+            operands.addAll(arguments);
+        }
+
+        private ValueType second() {
+            return operands.size() > 1 ? operand(1).type : null;
+        }
+
+        @Override
+        boolean hasEffect() {
+            return !intrinsic.pure(operand(0).type, second());
+        }
+
+        @Override
+        ValueType infer() {
+            return intrinsic.type(operand(0).type, second());
+        }
+
+        @Override
+        String opcode() {
+            return intrinsic.name;
+        }
+
+        @Override
+        Native copy() {
+            return new Native(paren, intrinsic, operands);
+        }
+    }
+
+    static class Get extends Instruction {
+        final Token name;
+
+        Get(Value record, Token name) {
+            super(record);
+            this.name = name;
+        }
+
+        @Override
+        boolean hasEffect() {
+            return true;
+        }
+
+        @Override
+        ValueType infer() {
+            return ValueType.ANY;
+        }
+
+        @Override
+        String opcode() {
+            return "get ." + name.lexeme;
+        }
+
+        @Override
+        Get copy() {
+            return new Get(operand(0), name);
+        }
+    }
+
+    static class Print extends Instruction {
+        Print(Value value) {
+            super(value);
+        }
+
+        @Override
+        boolean hasEffect() {
+            return true;
+        }
+
+        @Override
+        ValueType infer() {
+            return ValueType.NULL;
+        }
+
+        @Override
+        String opcode() {
+            return "print";
+        }
+
+        @Override
+        Print copy() {
+            return new Print(operand(0));
+        }
+    }
+
+    abstract static class Terminator {
+        final List<Value> operands = new ArrayList<>();
+
+        abstract List<Block> successors();
+    }
+
+    static class Jump extends Terminator {
+        Block target;
+
+        Jump(Block target) {
+            this.target = target;
+        }
+
+        @Override
+        List<Block> successors() {
+            return List.of(target);
+        }
+
+        @Override
+        public String toString() {
+            return "jump b" + target.id;
+        }
+    }
+
+    static class Branch extends Terminator {
+        Block then;
+        Block otherwise;
+
+        Branch(Value condition, Block then, Block otherwise) {
+            operands.add(condition);
+            this.then = then;
+            this.otherwise = otherwise;
+        }
+
+        @Override
+        List<Block> successors() {
+            return List.of(then, otherwise);
+        }
+
+        @Override
+        public String toString() {
+            return "branch " + operands.get(0).name() + " b" + then.id + " b" + otherwise.id;
+        }
+    }
+
+    static class Return extends Terminator {
+        Return(Value value) {
+            operands.add(value);
+        }
+
+        @Override
+        List<Block> successors() {
+            return List.of();
+        }
+
+        @Override
+        public String toString() {
+            return "return " + operands.get(0).name();
+        }
+    }
+
+    static class Block {
+        final int id;
+        final List<Block> predecessors = new ArrayList<>();
+        final List<Phi> phis = new ArrayList<>();
+        final List<Instruction> instructions = new ArrayList<>();
+        Terminator terminator;
+
+        Block(int id) {
+            this.id = id;
+        }
+
+        List<Block> successors() {
+            return terminator == null ? List.of() : terminator.successors();
+        }
+
+        /**
+         * Forgets one edge from the predecessor, with the phi operands
+         * that came along it.
+         */
+        void removePredecessor(Block predecessor) {
+            int index = predecessors.indexOf(predecessor);
+            predecessors.remove(index);
+            for (Phi phi : phis) {
+                phi.operands.remove(index);
+            }
+        }
+    }
+
+    static class Function {
+        final String name;
+        final List<Parameter> parameters = new ArrayList<>();
+        final List<Block> blocks = new ArrayList<>();
+        private final Map<Object, Constant> constants = new HashMap<>();
+        private int values = 0;
+        private int blockIds = 0;
+
+        Function(String name) {
+            this.name = name;
+        }
+
+        Block entry() {
+            return blocks.get(0);
+        }
+
+        Block newBlock() {
+            Block block = new Block(blockIds++);
+            blocks.add(block);
+            return block;
+        }
+
+        <T extends Value> T number(T value) {
+            value.id = values++;
+            return value;
+        }
+
+        Constant constant(Object value) {
+            // 1 and 1.0 are different constants, and so are true and 1
+            Object key = value == null ? Function.class : List.of(value.getClass(), value);
+            return constants.computeIfAbsent(key, k -> number(new Constant(value)));
+        }
+
+        /**
+         * Copies the blocks, which may come from another function, into
+         * this one and returns each block's copy. Operands with an entry
+         * in values are replaced by it, and each copied phi and
+         * instruction is entered there; other operands, predecessors and
+         * targets outside the blocks stay as they are.
+         */
+        Map<Block, Block> copy(List<Block> blocks, Map<Value, Value> values) {
+            Map<Block, Block> copies = new IdentityHashMap<>();
+            for (Block block : blocks) {
+                Block copy = newBlock();
+                copies.put(block, copy);
+                for (Phi phi : block.phis) {
+                    Phi phiCopy = number(phi.copy());
+                    phiCopy.block = copy;
+                    copy.phis.add(phiCopy);
+                    values.put(phi, phiCopy);
+                }
+                for (Instruction instruction : block.instructions) {
+                    Instruction instructionCopy = number(instruction.copy());
+                    instructionCopy.block = copy;
+                    copy.instructions.add(instructionCopy);
+                    values.put(instruction, instructionCopy);
+                }
+            }
+
+            for (Block block : blocks) {
+                Block copy = copies.get(block);
+                for (Block predecessor : block.predecessors) {
+                    copy.predecessors.add(copies.getOrDefault(predecessor, predecessor));
+                }
+                for (Phi phi : copy.phis) {
+                    phi.operands.replaceAll(operand -> map(values, operand));
+                }
+                for (Instruction instruction : copy.instructions) {
+                    instruction.operands.replaceAll(operand -> map(values, operand));
+                }
+
+                Terminator terminator = block.terminator;
+                if (terminator instanceof Return) {
+                    copy.terminator = new Return(map(values, terminator.operands.get(0)));
+                } else if (terminator instanceof Jump) {
+                    Block target = ((Jump) terminator).target;
+                    copy.terminator = new Jump(copies.getOrDefault(target, target));
+                } else {
+                    Branch branch = (Branch) terminator;
+                    copy.terminator = new Branch(map(values, branch.operands.get(0)),
+                            copies.getOrDefault(branch.then, branch.then),
+                            copies.getOrDefault(branch.otherwise, branch.otherwise));
+                }
+            }
+            return copies;
+        }
+
+        private Value map(Map<Value, Value> values, Value value) {
+            if (value instanceof Constant) return constant(((Constant) value).value);
+            return values.getOrDefault(value, value);
+        }
+
+        void replaceAllUses(Value old, Value replacement) {
+            for (Block block : blocks) {
+                for (Phi phi : block.phis) {
+                    phi.operands.replaceAll(operand -> operand == old ? replacement : operand);
+                }
+                for (Instruction instruction : block.instructions) {
+                    instruction.operands.replaceAll(operand -> operand == old ? replacement : operand);
+                }
+                if (block.terminator != null) {
+                    block.terminator.operands.replaceAll(operand -> operand == old ? replacement : operand);
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder("routine ").append(name).append('(');
+            for (int i = 0; i < parameters.size(); i++) {
+                text.append(i == 0 ? "" : ", ").append(parameters.get(i).name());
+            }
+            text.append(")\n");
+
+            for (Block block : blocks) {
+                text.append("b").append(block.id).append(':');
+                if (!block.predecessors.isEmpty()) {
+                    text.append("  ; from");
+                    for (Block predecessor : block.predecessors) {
+                        text.append(" b").append(predecessor.id);
+                    }
+                }
+                text.append('\n');
+                for (Phi phi : block.phis) {
+                    text.append("  ").append(phi).append('\n');
+                }
+                for (Instruction instruction : block.instructions) {
+                    text.append("  ").append(instruction).append('\n');
+                }
+                text.append("  ").append(block.terminator).append('\n');
+            }
+            return text.toString();
+        }
+    }
+}
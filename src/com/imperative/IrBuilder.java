@@ -0,0 +1,466 @@
+package com.imperative;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Lowers a routine body into {@link Ir}. Names are resolved once, against
+ * the blocks that declare them, the way the environment chain would find
+ * them at run time; names no block declares are globals, and calls to
+ * the library routines among them become native calls. Each local gets
+ * SSA values as it is written, with phis placed on demand while blocks
+ * are still missing predecessors (Braun et al., "Simple and Efficient
+ * Construction of Static Single Assignment Form").
+ *
+ * Bodies the IR cannot express exactly are refused and return null:
+ * arrays, whose members are evaluated in the reader's environment,
+ * records, nested routines, type declarations, a for loop anywhere but
+ * directly in a block (it would declare its name in whatever environment
+ * is current), and a name declared twice in one block, which is a
+ * runtime error the interpreter should be the one to report.
+ */
+class IrBuilder implements Expr.Visitor<Ir.Value>, Stmt.Visitor<Void> {
+    private static final class Unsupported extends RuntimeException {
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final Unsupported UNSUPPORTED = new Unsupported();
+
+    private final Ir.Function function;
+    private final Deque<Map<Symbol, Integer>> scopes = new ArrayDeque<>();
+    private int variables = 0;
+    private Ir.Block current;
+
+    private final Map<Integer, Map<Ir.Block, Ir.Value>> definitions = new HashMap<>();
+    private final Map<Ir.Block, Map<Integer, Ir.Phi>> incompletePhis = new HashMap<>();
+    private final Set<Ir.Block> sealed = new HashSet<>();
+
+    private IrBuilder(String name) {
+        function = new Ir.Function(name);
+    }
+
+    static Ir.Function build(Stmt.Routine declaration, List<Stmt> body) {
+        IrBuilder builder = new IrBuilder(declaration.name.lexeme);
+        try {
+            return builder.lower(declaration.params, body);
+        } catch (Unsupported unsupported) {
+            return null;
+        }
+    }
+
+    private Ir.Function lower(List<Token> params, List<Stmt> body) {
+        current = function.newBlock();
+        seal(current);
+
+        // parameters live in the same environment as the top level of the body
+        scopes.push(new HashMap<>());
+        for (int i = 0; i < params.size(); i++) {
+            Ir.Parameter parameter = function.number(new Ir.Parameter(params.get(i), i));
+            function.parameters.add(parameter);
+            write(declare(params.get(i)), current, parameter);
+        }
+        block(body);
+        scopes.pop();
+
+        current.terminator = new Ir.Return(function.constant(null));
+        return function;
+    }
+
+    private void block(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if (statement instanceof Stmt.For) {
+                forLoop((Stmt.For) statement);
+            } else {
+                statement.accept(this);
+            }
+        }
+    }
+
+    private int declare(Token name) {
+        Map<Symbol, Integer> scope = scopes.peek();
+        if (scope.containsKey(name.symbol)) throw UNSUPPORTED;
+
+        int variable = variables++;
+        scope.put(name.symbol, variable);
+        return variable;
+    }
+
+    private Integer resolve(Token name) {
+        for (Map<Symbol, Integer> scope : scopes) {
+            Integer variable = scope.get(name.symbol);
+            if (variable != null) return variable;
+        }
+        return null;
+    }
+
+    private <T extends Ir.Instruction> T emit(T instruction) {
+        function.number(instruction);
+        instruction.block = current;
+        current.instructions.add(instruction);
+        return instruction;
+    }
+
+    private void jump(Ir.Block target) {
+        current.terminator = new Ir.Jump(target);
+        target.predecessors.add(current);
+    }
+
+    private void branch(Ir.Value condition, Ir.Block then, Ir.Block otherwise) {
+        current.terminator = new Ir.Branch(condition, then, otherwise);
+        then.predecessors.add(current);
+        otherwise.predecessors.add(current);
+    }
+
+    // SSA construction
+
+    private void write(int variable, Ir.Block block, Ir.Value value) {
+        definitions.computeIfAbsent(variable, v -> new HashMap<>()).put(block, value);
+    }
+
+    private Ir.Value read(int variable, Ir.Block block) {
+        Ir.Value value = definitions.computeIfAbsent(variable, v -> new HashMap<>()).get(block);
+        return value != null ? value : readRecursive(variable, block);
+    }
+
+    private Ir.Value readRecursive(int variable, Ir.Block block) {
+        Ir.Value value;
+        if (!sealed.contains(block)) {
+            Ir.Phi phi = phi(block);
+            incompletePhis.computeIfAbsent(block, b -> new HashMap<>()).put(variable, phi);
+            value = phi;
+        } else if (block.predecessors.isEmpty()) {
+            // only in code after a return, which never runs
+            value = function.constant(null);
+        } else if (block.predecessors.size() == 1) {
+            value = read(variable, block.predecessors.get(0));
+        } else {
+            Ir.Phi phi = phi(block);
+            write(variable, block, phi);
+            addOperands(variable, phi);
+            value = phi;
+        }
+        write(variable, block, value);
+        return value;
+    }
+
+    private Ir.Phi phi(Ir.Block block) {
+        Ir.Phi phi = function.number(new Ir.Phi());
+        phi.block = block;
+        block.phis.add(phi);
+        return phi;
+    }
+
+    private void addOperands(int variable, Ir.Phi phi) {
+        for (Ir.Block predecessor : phi.block.predecessors) {
+            phi.operands.add(read(variable, predecessor));
+        }
+    }
+
+    private void seal(Ir.Block block) {
+        Map<Integer, Ir.Phi> phis = incompletePhis.remove(block);
+        if (phis != null) {
+            for (Map.Entry<Integer, Ir.Phi> entry : phis.entrySet()) {
+                addOperands(entry.getKey(), entry.getValue());
+            }
+        }
+        sealed.add(block);
+    }
+
+    private Ir.Value lower(Expr expr) {
+        return expr.accept(this);
+    }
+
+    // statements
+
+    @Override
+    public Void visitArrayStmt(Stmt.Array stmt) {
+        throw UNSUPPORTED;
+    }
+
+    @Override
+    public Void visitBodyStmt(Stmt.Body stmt) {
+        scopes.push(new HashMap<>());
+        block(stmt.statements);
+        scopes.pop();
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        lower(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitRoutineStmt(Stmt.Routine stmt) {
+        throw UNSUPPORTED;
+    }
+
+    @Override
+    public Void visitRangeStmt(Stmt.Range stmt) {
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        throw UNSUPPORTED;
+    }
+
+    /**
+     * The loop name is declared in the enclosing block and reassigned
+     * from a hidden counter on every iteration, so the body may assign
+     * it without changing how often the loop runs.
+     */
+    private void forLoop(Stmt.For stmt) {
+        Ir.Value from = emit(new Ir.ToInteger(lower(stmt.range.from)));
+        Ir.Value to = emit(new Ir.ToInteger(lower(stmt.range.to)));
+
+        int name = declare(stmt.name);
+        int counter = variables++;
+        write(name, current, from);
+        write(counter, current, from);
+
+        Ir.Block header = function.newBlock();
+        Ir.Block body = function.newBlock();
+        Ir.Block exit = function.newBlock();
+        jump(header);
+
+        current = header;
+        Token compare = stmt.reverse
+                ? new Token(TokenType.GREATER, ">", null, stmt.name.line)
+                : new Token(TokenType.LESS, "<", null, stmt.name.line);
+        Ir.Value condition = emit(new Ir.Binary(compare, read(counter, header), to));
+        branch(condition, body, exit);
+        seal(body);
+        seal(exit);
+
+        current = body;
+        stmt.body.accept(this);
+        Token step = stmt.reverse
+                ? new Token(TokenType.MINUS, "-", null, stmt.name.line)
+                : new Token(TokenType.PLUS, "+", null, stmt.name.line);
+        Ir.Value next = emit(new Ir.Binary(step, read(counter, current), function.constant(1)));
+        write(counter, current, next);
+        write(name, current, next);
+        jump(header);
+        seal(header);
+
+        current = exit;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        Ir.Value condition = lower(stmt.condition);
+        Ir.Block then = function.newBlock();
+        Ir.Block otherwise = stmt.elseBranch == null ? null : function.newBlock();
+        Ir.Block join = function.newBlock();
+        branch(condition, then, otherwise == null ? join : otherwise);
+
+        seal(then);
+        current = then;
+        stmt.thenBranch.accept(this);
+        jump(join);
+
+        if (otherwise != null) {
+            seal(otherwise);
+            current = otherwise;
+            stmt.elseBranch.accept(this);
+            jump(join);
+        }
+
+        seal(join);
+        current = join;
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        emit(new Ir.Print(lower(stmt.expression)));
+        return null;
+    }
+
+    @Override
+    public Void visitRecordStmt(Stmt.Record stmt) {
+        throw UNSUPPORTED;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        Ir.Value value = stmt.value == null ? function.constant(null) : lower(stmt.value);
+        current.terminator = new Ir.Return(value);
+
+        // whatever follows in the block is unreachable, but still lowered
+        current = function.newBlock();
+        seal(current);
+        return null;
+    }
+
+    @Override
+    public Void visitTypeDeclareStmt(Stmt.TypeDeclare stmt) {
+        throw UNSUPPORTED;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        Ir.Value value = stmt.initializer == null ? function.constant(null) : lower(stmt.initializer);
+        write(declare(stmt.name), current, value);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        Ir.Block header = function.newBlock();
+        jump(header);
+
+        current = header;
+        Ir.Value condition = lower(stmt.condition);
+        Ir.Block body = function.newBlock();
+        Ir.Block exit = function.newBlock();
+        branch(condition, body, exit);
+        seal(body);
+        seal(exit);
+
+        current = body;
+        stmt.body.accept(this);
+        jump(header);
+        seal(header);
+
+        current = exit;
+        return null;
+    }
+
+    // expressions
+
+    @Override
+    public Ir.Value visitAssignExpr(Expr.Assign expr) {
+        Ir.Value value = lower(expr.value);
+        Integer variable = resolve(expr.name);
+        if (variable != null) {
+            write(variable, current, value);
+        } else {
+            emit(new Ir.StoreGlobal(expr.name, value));
+        }
+        return function.constant(null);
+    }
+
+    @Override
+    public Ir.Value visitBinaryExpr(Expr.Binary expr) {
+        Ir.Value left = lower(expr.left);
+        Ir.Value right = lower(expr.right);
+        return emit(new Ir.Binary(expr.operator, left, right));
+    }
+
+    @Override
+    public Ir.Value visitCallExpr(Expr.Call expr) {
+        Intrinsic intrinsic = null;
+        if (expr.callee instanceof Expr.Variable && resolve(((Expr.Variable) expr.callee).name) == null) {
+            intrinsic = Intrinsic.named(((Expr.Variable) expr.callee).name.symbol);
+        }
+        // a wrong argument count is left to the call to report
+        if (intrinsic != null && !intrinsic.accepts(expr.arguments.size())) intrinsic = null;
+
+        Ir.Value callee = lower(expr.callee);
+        List<Ir.Value> arguments = new ArrayList<>();
+        for (Expr argument : expr.arguments) {
+            arguments.add(lower(argument));
+        }
+        if (intrinsic == null) return emit(new Ir.Call(expr.paren, callee, arguments));
+
+        // the library routine runs directly while the global still holds it, the
+        // program may have declared the name for something else since
+        Ir.Value guard = emit(new Ir.Binary(new Token(TokenType.EQUAL_EQUAL, "==", null, expr.paren.line),
+                callee, function.constant(intrinsic)));
+        Ir.Block direct = function.newBlock();
+        Ir.Block call = function.newBlock();
+        Ir.Block join = function.newBlock();
+        branch(guard, direct, call);
+        seal(direct);
+        seal(call);
+
+        current = direct;
+        Ir.Value result = emit(new Ir.Native(expr.paren, intrinsic, arguments));
+        jump(join);
+        current = call;
+        Ir.Value slow = emit(new Ir.Call(expr.paren, callee, arguments));
+        jump(join);
+        seal(join);
+
+        current = join;
+        Ir.Phi phi = phi(join);
+        phi.operands.add(result);
+        phi.operands.add(slow);
+        return phi;
+    }
+
+    @Override
+    public Ir.Value visitGetExpr(Expr.Get expr) {
+        return emit(new Ir.Get(lower(expr.record), expr.name));
+    }
+
+    @Override
+    public Ir.Value visitGetIndexExpr(Expr.GetIndex expr) {
+        throw UNSUPPORTED;
+    }
+
+    @Override
+    public Ir.Value visitGroupingExpr(Expr.Grouping expr) {
+        return lower(expr.expression);
+    }
+
+    @Override
+    public Ir.Value visitLiteralExpr(Expr.Literal expr) {
+        return function.constant(expr.value);
+    }
+
+    /**
+     * Or and and yield an operand, not a boolean, so the short circuit
+     * joins in a phi of the left value and the right one.
+     */
+    @Override
+    public Ir.Value visitLogicalExpr(Expr.Logical expr) {
+        Ir.Value left = lower(expr.left);
+        if (expr.operator.type == TokenType.XOR) {
+            return emit(new Ir.Xor(left, lower(expr.right)));
+        }
+
+        Ir.Block right = function.newBlock();
+        Ir.Block join = function.newBlock();
+        if (expr.operator.type == TokenType.OR) {
+            branch(left, join, right);
+        } else {
+            branch(left, right, join);
+        }
+        seal(right);
+
+        current = right;
+        Ir.Value value = lower(expr.right);
+        jump(join);
+        seal(join);
+
+        current = join;
+        Ir.Phi phi = phi(join);
+        phi.operands.add(left);
+        phi.operands.add(value);
+        return phi;
+    }
+
+    @Override
+    public Ir.Value visitUnaryExpr(Expr.Unary expr) {
+        return emit(new Ir.Unary(expr.operator, lower(expr.right)));
+    }
+
+    @Override
+    public Ir.Value visitVariableExpr(Expr.Variable expr) {
+        Integer variable = resolve(expr.name);
+        if (variable != null) return read(variable, current);
+        return emit(new Ir.LoadGlobal(expr.name));
+    }
+}
@@ -0,0 +1,728 @@
+package com.imperative;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns optimized {@link Ir} back into something runnable: one frame of
+ * registers per call, with every SSA value at the slot of its id, and per
+ * basic block a list of closures over that frame followed by an exit that
+ * picks the next block. Values the types show to be integers, reals or
+ * booleans are kept unboxed in the frame's bits, and only boxed where
+ * they leave for a call, a global, a print or the caller; the rest are
+ * kept in its values. Constants are copied in with the frame in both
+ * forms, and phis become moves on the edges into their block. Unlike the
+ * closure tier no Environment is created at all.
+ */
+class IrCompiler {
+    interface Op {
+        void run(Object[] values, long[] bits);
+    }
+
+    interface Exit {
+        // the index of the next block, or -1 once the routine returned
+        int next(Object[] values, long[] bits);
+    }
+
+    private static class CompiledBlock {
+        Op[] ops;
+        Exit exit;
+    }
+
+    // where a slot keeps its value: boxed in the values, or in the bits as an int, a double's bits or 0 and 1
+    private static final int BOXED = 0;
+    private static final int INTEGER = 1;
+    private static final int REAL = 2;
+    private static final int BOOLEAN = 3;
+
+    /**
+     * The registers of one call, two arrays indexed alike.
+     */
+    static class Frame {
+        final Object[] values;
+        final long[] bits;
+
+        private Frame(Object[] values, long[] bits) {
+            this.values = values;
+            this.bits = bits;
+        }
+    }
+
+    /**
+     * A compiled routine body. A call takes a frame with {@link #enter},
+     * sets the arguments in it and runs it. Frames are kept per depth of
+     * recursion and reused by the next call at that depth without being
+     * cleared: constants are never overwritten, and every other slot is
+     * written before it is read.
+     */
+    static class Executable {
+        // the frames kept, for recursion deeper than this they are made per call
+        private static final int POOLED = 256;
+
+        private final Object[] values;
+        private final long[] bits;
+        private final int[] parameters;
+        private final CompiledBlock[] blocks;
+        private final int result;
+        private Frame[] frames = new Frame[4];
+        // the calls running, which hold the frames below this depth
+        private int depth = 0;
+
+        private Executable(Object[] values, long[] bits, int[] parameters, CompiledBlock[] blocks, int result) {
+            this.values = values;
+            this.bits = bits;
+            this.parameters = parameters;
+            this.blocks = blocks;
+            this.result = result;
+        }
+
+        /**
+         * A frame for a new call, which must be run next with nothing but
+         * its arguments set in between; only the interpreter thread calls.
+         * The frame is only taken once it runs, so a call that fails
+         * before that leaves the depth as it was.
+         */
+        Frame enter() {
+            if (depth >= POOLED) return new Frame(values.clone(), bits.clone());
+            if (depth == frames.length) frames = Arrays.copyOf(frames, depth * 2);
+            Frame frame = frames[depth];
+            if (frame == null) frame = frames[depth] = new Frame(values.clone(), bits.clone());
+            return frame;
+        }
+
+        // parameters are of any type, so they are kept boxed
+        void set(Frame frame, int parameter, Object argument) {
+            frame.values[parameters[parameter]] = argument;
+        }
+
+        Object run(Frame frame) {
+            Object[] values = frame.values;
+            long[] bits = frame.bits;
+            depth++;
+            try {
+                int block = 0;
+                do {
+                    CompiledBlock code = blocks[block];
+                    for (Op op : code.ops) {
+                        op.run(values, bits);
+                    }
+                    block = code.exit.next(values, bits);
+                } while (block >= 0);
+                return values[result];
+            } finally {
+                depth--;
+            }
+        }
+
+        Object run(Frame frame, Object[] arguments) {
+            for (int i = 0; i < parameters.length; i++) {
+                frame.values[parameters[i]] = arguments[i];
+            }
+            return run(frame);
+        }
+    }
+
+    private final Evaluator evaluator;
+    private final Map<Ir.Block, Integer> indices = new HashMap<>();
+    private int slots;
+
+    private IrCompiler(Evaluator evaluator) {
+        this.evaluator = evaluator;
+    }
+
+    /**
+     * Lowers, optimizes and compiles a routine body, or returns null when
+     * the IR cannot express it. Calls to the given routines may be inlined.
+     */
+    static Executable compile(Evaluator evaluator, Stmt.Routine declaration, List<Stmt> body,
+                              Map<Symbol, Inliner.Target> callees) {
+        Ir.Function function = IrBuilder.build(declaration, body);
+        if (function == null) return null;
+
+        PassManager.standard(callees, evaluator.dumpIr ? System.err : null).run(function);
+        return new IrCompiler(evaluator).compile(function);
+    }
+
+    private Executable compile(Ir.Function function) {
+        for (Ir.Block block : function.blocks) {
+            indices.put(block, indices.size());
+            for (Ir.Phi phi : block.phis) {
+                slots = Math.max(slots, phi.id + 1);
+                // a constant may be used by phis only
+                for (Ir.Value operand : phi.operands) {
+                    slots = Math.max(slots, operand.id + 1);
+                }
+            }
+            for (Ir.Instruction instruction : block.instructions) {
+                slots = Math.max(slots, instruction.id + 1);
+                for (Ir.Value operand : instruction.operands) {
+                    slots = Math.max(slots, operand.id + 1);
+                }
+            }
+            for (Ir.Value operand : block.terminator.operands) {
+                slots = Math.max(slots, operand.id + 1);
+            }
+        }
+        for (Ir.Parameter parameter : function.parameters) {
+            slots = Math.max(slots, parameter.id + 1);
+        }
+        // the return value, and one spare for breaking cycles of phi moves
+        int result = slots++;
+        int scratch = slots++;
+
+        Object[] values = new Object[slots];
+        long[] bits = new long[slots];
+        for (Ir.Block block : function.blocks) {
+            for (Ir.Phi phi : block.phis) {
+                constants(phi.operands, values, bits);
+            }
+            for (Ir.Instruction instruction : block.instructions) {
+                constants(instruction.operands, values, bits);
+            }
+            constants(block.terminator.operands, values, bits);
+        }
+
+        int[] parameters = new int[function.parameters.size()];
+        for (int i = 0; i < parameters.length; i++) {
+            parameters[i] = function.parameters.get(i).id;
+        }
+
+        CompiledBlock[] blocks = new CompiledBlock[function.blocks.size()];
+        for (Ir.Block block : function.blocks) {
+            CompiledBlock code = new CompiledBlock();
+            code.ops = new Op[block.instructions.size()];
+            for (int i = 0; i < code.ops.length; i++) {
+                code.ops[i] = op(block.instructions.get(i));
+            }
+            code.exit = exit(block, result, scratch);
+            blocks[indices.get(block)] = code;
+        }
+        return new Executable(values, bits, parameters, blocks, result);
+    }
+
+    private static void constants(List<Ir.Value> operands, Object[] values, long[] bits) {
+        for (Ir.Value operand : operands) {
+            if (!(operand instanceof Ir.Constant)) continue;
+            Object value = ((Ir.Constant) operand).value;
+            values[operand.id] = value;
+            if (value instanceof Integer) bits[operand.id] = (int) value;
+            if (value instanceof Double) bits[operand.id] = Double.doubleToRawLongBits((double) value);
+            if (value instanceof Boolean) bits[operand.id] = (boolean) value ? 1 : 0;
+        }
+    }
+
+    /**
+     * Where the value is read from and written to. A constant is in both
+     * arrays, and generic code reads it boxed.
+     */
+    private static int kind(Ir.Value value) {
+        if (value instanceof Ir.Constant || value.type == null) return BOXED;
+        switch (value.type) {
+            case INTEGER:
+                return INTEGER;
+            case REAL:
+                return REAL;
+            case BOOLEAN:
+                return BOOLEAN;
+            default:
+                return BOXED;
+        }
+    }
+
+    private static Object get(Object[] values, long[] bits, int slot, int kind) {
+        switch (kind) {
+            case INTEGER:
+                return (int) bits[slot];
+            case REAL:
+                return Double.longBitsToDouble(bits[slot]);
+            case BOOLEAN:
+                return bits[slot] != 0;
+            default:
+                return values[slot];
+        }
+    }
+
+    private static void put(Object[] values, long[] bits, int slot, int kind, Object value) {
+        switch (kind) {
+            case INTEGER:
+                bits[slot] = (int) value;
+                break;
+            case REAL:
+                bits[slot] = Double.doubleToRawLongBits((double) value);
+                break;
+            case BOOLEAN:
+                bits[slot] = (boolean) value ? 1 : 0;
+                break;
+            default:
+                values[slot] = value;
+        }
+    }
+
+    private static boolean truthy(Object[] values, long[] bits, int slot, int kind) {
+        switch (kind) {
+            case BOXED:
+                return Operators.isTruthy(values[slot]);
+            case BOOLEAN:
+                return bits[slot] != 0;
+            default:
+                return true;
+        }
+    }
+
+    private Op op(Ir.Instruction instruction) {
+        int target = instruction.id;
+        int result = kind(instruction);
+        int[] operands = new int[instruction.operands.size()];
+        int[] kinds = new int[operands.length];
+        for (int i = 0; i < operands.length; i++) {
+            operands[i] = instruction.operand(i).id;
+            kinds[i] = kind(instruction.operand(i));
+        }
+
+        if (instruction instanceof Ir.Binary) return binary((Ir.Binary) instruction);
+
+        if (instruction instanceof Ir.Unary) {
+            Token operator = ((Ir.Unary) instruction).operator;
+            int operand = operands[0];
+            int kind = kinds[0];
+            Ir.ValueType type = instruction.operand(0).type;
+            if (operator.type == TokenType.MINUS) {
+                if (type == Ir.ValueType.INTEGER && result == INTEGER) {
+                    return (values, bits) -> bits[target] = -(int) bits[operand];
+                }
+                if (type == Ir.ValueType.REAL && result == REAL) {
+                    return (values, bits) -> bits[target] =
+                            Double.doubleToRawLongBits(-Double.longBitsToDouble(bits[operand]));
+                }
+                return (values, bits) -> put(values, bits, target, result,
+                        Operators.negate(operator, get(values, bits, operand, kind)));
+            }
+            if (operator.type == TokenType.NOT) {
+                return (values, bits) -> put(values, bits, target, result, !truthy(values, bits, operand, kind));
+            }
+            return (values, bits) -> values[target] = null;
+        }
+
+        if (instruction instanceof Ir.Xor) {
+            int left = operands[0];
+            int right = operands[1];
+            return (values, bits) -> put(values, bits, target, result,
+                    truthy(values, bits, left, kinds[0]) ^ truthy(values, bits, right, kinds[1]));
+        }
+
+        if (instruction instanceof Ir.ToInteger) {
+            int operand = operands[0];
+            if (instruction.operand(0).type == Ir.ValueType.INTEGER && result == INTEGER) {
+                return (values, bits) -> bits[target] = bits[operand];
+            }
+            int kind = kinds[0];
+            return (values, bits) -> put(values, bits, target, result, (int) get(values, bits, operand, kind));
+        }
+
+        if (instruction instanceof Ir.Remains) {
+            Ir.Remains remains = (Ir.Remains) instruction;
+            int counter = operands[0];
+            int bound = operands[1];
+            if (remains.operand(0).type == Ir.ValueType.INTEGER && remains.operand(1).type == Ir.ValueType.INTEGER
+                    && result == BOOLEAN) {
+                return (values, bits) -> bits[target] = remains.test((int) bits[counter], (int) bits[bound]) ? 1 : 0;
+            }
+            return (values, bits) -> put(values, bits, target, result, remains.test(
+                    (int) get(values, bits, counter, kinds[0]), (int) get(values, bits, bound, kinds[1])));
+        }
+
+        if (instruction instanceof Ir.LoadGlobal) {
+            Token name = ((Ir.LoadGlobal) instruction).name;
+            Environment globals = evaluator.globals;
+            return (values, bits) -> put(values, bits, target, result, globals.get(name));
+        }
+
+        if (instruction instanceof Ir.StoreGlobal) {
+            Token name = ((Ir.StoreGlobal) instruction).name;
+            Environment globals = evaluator.globals;
+            int operand = operands[0];
+            int kind = kinds[0];
+            return (values, bits) -> globals.assign(name, get(values, bits, operand, kind));
+        }
+
+        if (instruction instanceof Ir.Call) {
+            Token paren = ((Ir.Call) instruction).paren;
+            return (values, bits) -> put(values, bits, target, result, call(paren, values, bits, operands, kinds));
+        }
+
+        if (instruction instanceof Ir.Specialized) {
+            return specialized((Ir.Specialized) instruction, operands, kinds);
+        }
+
+        if (instruction instanceof Ir.Native) {
+            return intrinsic((Ir.Native) instruction, operands, kinds);
+        }
+
+        if (instruction instanceof Ir.Get) {
+            Token name = ((Ir.Get) instruction).name;
+            int operand = operands[0];
+            int kind = kinds[0];
+            return (values, bits) -> put(values, bits, target, result,
+                    ((IRecord) get(values, bits, operand, kind)).get(name));
+        }
+
+        int operand = operands[0];
+        int kind = kinds[0];
+        return (values, bits) -> System.out.println(Operators.stringify(get(values, bits, operand, kind)));
+    }
+
+    private Object call(Token paren, Object[] values, long[] bits, int[] operands, int[] kinds) {
+        Object callee = get(values, bits, operands[0], kinds[0]);
+        try {
+            return call(paren, callee, values, bits, operands, kinds);
+        } catch (Intrinsic.ArgumentError error) {
+            throw new RuntimeError(paren, error.getMessage());
+        }
+    }
+
+    private Object call(Token paren, Object callee, Object[] values, long[] bits, int[] operands, int[] kinds) {
+        switch (operands.length - 1) {
+            case 0:
+                return RoutineCallable.check(callee, 0, paren).call0(evaluator);
+            case 1:
+                return RoutineCallable.check(callee, 1, paren).call1(evaluator,
+                        get(values, bits, operands[1], kinds[1]));
+            case 2:
+                return RoutineCallable.check(callee, 2, paren).call2(evaluator,
+                        get(values, bits, operands[1], kinds[1]), get(values, bits, operands[2], kinds[2]));
+            case 3:
+                return RoutineCallable.check(callee, 3, paren).call3(evaluator,
+                        get(values, bits, operands[1], kinds[1]), get(values, bits, operands[2], kinds[2]),
+                        get(values, bits, operands[3], kinds[3]));
+            case 4:
+                return RoutineCallable.check(callee, 4, paren).call4(evaluator,
+                        get(values, bits, operands[1], kinds[1]), get(values, bits, operands[2], kinds[2]),
+                        get(values, bits, operands[3], kinds[3]), get(values, bits, operands[4], kinds[4]));
+            default:
+                Object[] arguments = new Object[operands.length - 1];
+                for (int i = 0; i < arguments.length; i++) {
+                    arguments[i] = get(values, bits, operands[i + 1], kinds[i + 1]);
+                }
+                return RoutineCallable.check(callee, arguments.length, paren).call(evaluator, arguments);
+        }
+    }
+
+    /**
+     * Runs the clone while the callee is still the routine it was made
+     * from and the profiler, which only sees the interpreter, is off.
+     */
+    private Op specialized(Ir.Specialized instruction, int[] operands, int[] kinds) {
+        Specializer.Clone clone = instruction.clone;
+        if (clone.executable == null) clone.executable = new IrCompiler(evaluator).compile(clone.function);
+        Executable code = clone.executable;
+        IRoutine routine = clone.routine;
+        Token paren = instruction.paren;
+        int target = instruction.id;
+        int result = kind(instruction);
+
+        // the operands of the arguments the clone still takes
+        int[] arguments = new int[clone.function.parameters.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = clone.function.parameters.get(i).index + 1;
+        }
+
+        return (values, bits) -> {
+            if (get(values, bits, operands[0], kinds[0]) != routine || evaluator.profiler != null) {
+                put(values, bits, target, result, call(paren, values, bits, operands, kinds));
+                return;
+            }
+            Frame callee = code.enter();
+            for (int i = 0; i < arguments.length; i++) {
+                int argument = arguments[i];
+                code.set(callee, i, get(values, bits, operands[argument], kinds[argument]));
+            }
+            evaluator.routineCalls++;
+            put(values, bits, target, result, evaluator.executeCompiled(code, callee));
+        };
+    }
+
+    /**
+     * Calls the library routine directly; on numbers the types show, the
+     * math is done on the bits without boxing.
+     */
+    private Op intrinsic(Ir.Native instruction, int[] operands, int[] kinds) {
+        Intrinsic intrinsic = instruction.intrinsic;
+        Token paren = instruction.paren;
+        int target = instruction.id;
+        int result = kind(instruction);
+        int x = operands[0];
+        Ir.ValueType a = instruction.operand(0).type;
+
+        if (operands.length == 1) {
+            if (result == REAL && Ir.ValueType.isNumber(a)) {
+                switch (intrinsic) {
+                    case SQRT:
+                        return (values, bits) -> bits[target] =
+                                Double.doubleToRawLongBits(Math.sqrt(real(bits, x, a)));
+                    case ABS:
+                        return (values, bits) -> bits[target] =
+                                Double.doubleToRawLongBits(Math.abs(Double.longBitsToDouble(bits[x])));
+                }
+            }
+            if (result == INTEGER && a == Ir.ValueType.INTEGER) {
+                switch (intrinsic) {
+                    case ABS:
+                        return (values, bits) -> bits[target] = Math.abs((int) bits[x]);
+                    case FLOOR:
+                        return (values, bits) -> bits[target] = bits[x];
+                }
+            }
+            if (result == INTEGER && a == Ir.ValueType.REAL && intrinsic == Intrinsic.FLOOR) {
+                return (values, bits) -> bits[target] = (int) Math.floor(Double.longBitsToDouble(bits[x]));
+            }
+            int kind = kinds[0];
+            return (values, bits) -> {
+                try {
+                    put(values, bits, target, result, intrinsic.call1(evaluator, get(values, bits, x, kind)));
+                } catch (Intrinsic.ArgumentError error) {
+                    throw new RuntimeError(paren, error.getMessage());
+                }
+            };
+        }
+
+        int y = operands[1];
+        Ir.ValueType b = instruction.operand(1).type;
+        if (result == INTEGER && a == Ir.ValueType.INTEGER && b == Ir.ValueType.INTEGER) {
+            switch (intrinsic) {
+                case MIN:
+                    return (values, bits) -> bits[target] = Math.min((int) bits[x], (int) bits[y]);
+                case MAX:
+                    return (values, bits) -> bits[target] = Math.max((int) bits[x], (int) bits[y]);
+            }
+        }
+        if (result == REAL && Ir.ValueType.isNumber(a) && Ir.ValueType.isNumber(b)) {
+            switch (intrinsic) {
+                case MIN:
+                    return (values, bits) -> bits[target] =
+                            Double.doubleToRawLongBits(Math.min(real(bits, x, a), real(bits, y, b)));
+                case MAX:
+                    return (values, bits) -> bits[target] =
+                            Double.doubleToRawLongBits(Math.max(real(bits, x, a), real(bits, y, b)));
+                case POW:
+                    return (values, bits) -> bits[target] =
+                            Double.doubleToRawLongBits(Math.pow(real(bits, x, a), real(bits, y, b)));
+            }
+        }
+        return (values, bits) -> {
+            try {
+                put(values, bits, target, result,
+                        intrinsic.call2(evaluator, get(values, bits, x, kinds[0]), get(values, bits, y, kinds[1])));
+            } catch (Intrinsic.ArgumentError error) {
+                throw new RuntimeError(paren, error.getMessage());
+            }
+        };
+    }
+
+    // a number in the bits, of a value typed integer or real
+    private static double real(long[] bits, int slot, Ir.ValueType type) {
+        return type == Ir.ValueType.INTEGER ? (int) bits[slot] : Double.longBitsToDouble(bits[slot]);
+    }
+
+    private static Op binary(Ir.Binary instruction) {
+        int target = instruction.id;
+        int result = kind(instruction);
+        int a = instruction.operand(0).id;
+        int b = instruction.operand(1).id;
+        int leftKind = kind(instruction.operand(0));
+        int rightKind = kind(instruction.operand(1));
+        TokenType operator = instruction.operator.type;
+        Ir.ValueType left = instruction.operand(0).type;
+        Ir.ValueType right = instruction.operand(1).type;
+
+        if (left == Ir.ValueType.INTEGER && right == Ir.ValueType.INTEGER && result != BOXED) {
+            switch (operator) {
+                case PLUS:
+                    return (values, bits) -> bits[target] = (int) bits[a] + (int) bits[b];
+                case MINUS:
+                    return (values, bits) -> bits[target] = (int) bits[a] - (int) bits[b];
+                case STAR:
+                    return (values, bits) -> bits[target] = (int) bits[a] * (int) bits[b];
+                case SLASH:
+                    return (values, bits) -> bits[target] = (int) bits[a] / (int) bits[b];
+                case LESS:
+                    return (values, bits) -> bits[target] = bits[a] < bits[b] ? 1 : 0;
+                case LESS_EQUAL:
+                    return (values, bits) -> bits[target] = bits[a] <= bits[b] ? 1 : 0;
+                case GREATER:
+                    return (values, bits) -> bits[target] = bits[a] > bits[b] ? 1 : 0;
+                case GREATER_EQUAL:
+                    return (values, bits) -> bits[target] = bits[a] >= bits[b] ? 1 : 0;
+                case EQUAL_EQUAL:
+                    return (values, bits) -> bits[target] = bits[a] == bits[b] ? 1 : 0;
+                case SLASH_EQUAL:
+                    return (values, bits) -> bits[target] = bits[a] != bits[b] ? 1 : 0;
+            }
+        } else if (left == Ir.ValueType.REAL && right == Ir.ValueType.REAL && result != BOXED) {
+            switch (operator) {
+                case PLUS:
+                    return (values, bits) -> bits[target] = Double.doubleToRawLongBits(
+                            Double.longBitsToDouble(bits[a]) + Double.longBitsToDouble(bits[b]));
+                case MINUS:
+                    return (values, bits) -> bits[target] = Double.doubleToRawLongBits(
+                            Double.longBitsToDouble(bits[a]) - Double.longBitsToDouble(bits[b]));
+                case STAR:
+                    return (values, bits) -> bits[target] = Double.doubleToRawLongBits(
+                            Double.longBitsToDouble(bits[a]) * Double.longBitsToDouble(bits[b]));
+                case SLASH:
+                    return (values, bits) -> bits[target] = Double.doubleToRawLongBits(
+                            Double.longBitsToDouble(bits[a]) / Double.longBitsToDouble(bits[b]));
+                case LESS:
+                    return (values, bits) -> bits[target] =
+                            Double.longBitsToDouble(bits[a]) < Double.longBitsToDouble(bits[b]) ? 1 : 0;
+                case LESS_EQUAL:
+                    return (values, bits) -> bits[target] =
+                            Double.longBitsToDouble(bits[a]) <= Double.longBitsToDouble(bits[b]) ? 1 : 0;
+                case GREATER:
+                    return (values, bits) -> bits[target] =
+                            Double.longBitsToDouble(bits[a]) > Double.longBitsToDouble(bits[b]) ? 1 : 0;
+                case GREATER_EQUAL:
+                    return (values, bits) -> bits[target] =
+                            Double.longBitsToDouble(bits[a]) >= Double.longBitsToDouble(bits[b]) ? 1 : 0;
+            }
+        }
+
+        return (values, bits) -> put(values, bits, target, result,
+                Operators.binary(operator, get(values, bits, a, leftKind), get(values, bits, b, rightKind)));
+    }
+
+    private Exit exit(Ir.Block block, int result, int scratch) {
+        Ir.Terminator terminator = block.terminator;
+        if (terminator instanceof Ir.Return) {
+            int value = terminator.operands.get(0).id;
+            int kind = kind(terminator.operands.get(0));
+            return (values, bits) -> {
+                values[result] = get(values, bits, value, kind);
+                return -1;
+            };
+        }
+
+        if (terminator instanceof Ir.Jump) {
+            Ir.Block target = ((Ir.Jump) terminator).target;
+            int index = indices.get(target);
+            int[] moves = moves(block, target, scratch);
+            if (moves.length == 0) return (values, bits) -> index;
+            return (values, bits) -> {
+                move(values, bits, moves);
+                return index;
+            };
+        }
+
+        Ir.Branch branch = (Ir.Branch) terminator;
+        int condition = branch.operands.get(0).id;
+        int kind = kind(branch.operands.get(0));
+        int then = indices.get(branch.then);
+        int otherwise = indices.get(branch.otherwise);
+        int[] thenMoves = moves(block, branch.then, scratch);
+        int[] otherwiseMoves = moves(block, branch.otherwise, scratch);
+        if (thenMoves.length == 0 && otherwiseMoves.length == 0) {
+            if (kind == BOOLEAN) return (values, bits) -> bits[condition] != 0 ? then : otherwise;
+            return (values, bits) -> truthy(values, bits, condition, kind) ? then : otherwise;
+        }
+        return (values, bits) -> {
+            if (truthy(values, bits, condition, kind)) {
+                move(values, bits, thenMoves);
+                return then;
+            }
+            move(values, bits, otherwiseMoves);
+            return otherwise;
+        };
+    }
+
+    // how a phi move copies: the values, the bits, both, or the bits boxed as BOX plus their kind
+    private static final int COPY_VALUES = 0;
+    private static final int COPY_BITS = 1;
+    private static final int COPY_BOTH = 2;
+    private static final int BOX = 3;
+
+    private static void move(Object[] values, long[] bits, int[] moves) {
+        for (int i = 0; i < moves.length; i += 3) {
+            int target = moves[i];
+            int source = moves[i + 1];
+            switch (moves[i + 2]) {
+                case COPY_VALUES:
+                    values[target] = values[source];
+                    break;
+                case COPY_BITS:
+                    bits[target] = bits[source];
+                    break;
+                case COPY_BOTH:
+                    values[target] = values[source];
+                    bits[target] = bits[source];
+                    break;
+                default:
+                    values[target] = get(values, bits, source, moves[i + 2] - BOX);
+            }
+        }
+    }
+
+    /**
+     * How a phi takes the operand: a phi kept in the bits has operands of
+     * its type, which are in the bits too, and a boxed phi boxes those
+     * kept in the bits.
+     */
+    private static int how(Ir.Phi phi, Ir.Value operand) {
+        if (kind(phi) != BOXED) return COPY_BITS;
+        int kind = kind(operand);
+        return kind == BOXED ? COPY_VALUES : BOX + kind;
+    }
+
+    /**
+     * The phi copies on one edge, as triples of target slot, source slot
+     * and how to copy, in an order that reads every source before it is
+     * overwritten. A cycle of copies goes through the scratch slot.
+     */
+    private static int[] moves(Ir.Block from, Ir.Block to, int scratch) {
+        int index = to.predecessors.indexOf(from);
+        List<int[]> pending = new ArrayList<>();
+        for (Ir.Phi phi : to.phis) {
+            Ir.Value source = phi.operand(index);
+            if (source.id != phi.id) pending.add(new int[]{phi.id, source.id, how(phi, source)});
+        }
+
+        List<Integer> ordered = new ArrayList<>();
+        while (!pending.isEmpty()) {
+            int[] ready = null;
+            for (int[] move : pending) {
+                boolean read = false;
+                for (int[] other : pending) {
+                    if (other != move && other[1] == move[0]) read = true;
+                }
+                if (!read) {
+                    ready = move;
+                    break;
+                }
+            }
+
+            if (ready == null) {
+                // every target is still to be read: park one in the scratch slot
+                int[] move = pending.get(0);
+                ordered.add(scratch);
+                ordered.add(move[0]);
+                ordered.add(COPY_BOTH);
+                for (int[] other : pending) {
+                    if (other[1] == move[0]) other[1] = scratch;
+                }
+                ready = move;
+            }
+
+            ordered.add(ready[0]);
+            ordered.add(ready[1]);
+            ordered.add(ready[2]);
+            pending.remove(ready);
+        }
+
+        int[] moves = new int[ordered.size()];
+        for (int i = 0; i < moves.length; i++) {
+            moves[i] = ordered.get(i);
+        }
+        return moves;
+    }
+}
@@ -0,0 +1,16 @@
+package com.imperative;
+
+/**
+ * One transformation over an {@link Ir.Function}, run by the
+ * {@link PassManager} until no pass changes anything. Passes may rely on
+ * the value types {@link TypeInference} left behind but must leave the
+ * function valid for every other pass.
+ */
+interface IrPass {
+    String name();
+
+    /**
+     * Returns whether the function changed.
+     */
+    boolean run(Ir.Function function);
+}
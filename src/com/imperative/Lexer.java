@@ -4,10 +4,15 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import static com.imperative.TokenType.*;
 
 class Lexer {
+    // smallest slice of source worth handing to a worker thread
+    private static final int CHUNK_SIZE = 1 << 16;
+
     private static final Map<String, TokenType> keywords;
 
     static {
@@ -42,24 +47,97 @@ class Lexer {
 
     private final String source;
     private final List<Token> tokens = new ArrayList<>();
-    private int start = 0;
-    private int current = 0;
-    private int line = 1;
+    private final Names names = new Names();
+    private final int end;
+    private int start;
+    private int current;
+    private int line;
 
     Lexer(String source) {
+        this(source, 0, source.length(), 1);
+    }
+
+    private Lexer(String source, int from, int to, int line) {
         this.source = source;
+        this.start = from;
+        this.current = from;
+        this.end = to;
+        this.line = line;
     }
 
     List<Token> scanTokens() {
-        while (!isAtEnd()) {
-            start = current;
-            scanToken();
+        scanChunk();
+
+        tokens.add(new Token(EOF, "", null, line));
+        return tokens;
+    }
+
+    /**
+     * Tokenizes a large source on the given pool. No token spans a newline,
+     * so the source is cut into chunks at line boundaries, every chunk is
+     * lexed on its own starting from a precomputed line number, and the
+     * token lists are joined back in source order. Small sources are lexed
+     * sequentially.
+     */
+    static List<Token> scanTokensParallel(String source, ForkJoinPool pool) {
+        if (source.length() < 2 * CHUNK_SIZE) {
+            return new Lexer(source).scanTokens();
+        }
+
+        List<Integer> cuts = new ArrayList<>();
+        cuts.add(0);
+        int position = CHUNK_SIZE;
+        while (position < source.length()) {
+            int newline = source.indexOf('\n', position);
+            if (newline < 0) break;
+            cuts.add(newline + 1);
+            position = newline + 1 + CHUNK_SIZE;
+        }
+        if (cuts.get(cuts.size() - 1) < source.length()) {
+            cuts.add(source.length());
         }
 
+        int[] bounds = new int[cuts.size()];
+        for (int i = 0; i < bounds.length; i++) {
+            bounds[i] = cuts.get(i);
+        }
+
+        int chunks = bounds.length - 1;
+        int[] lines = new int[chunks];
+        pool.invoke(new ChunkTask(source, bounds, lines, null, 0, chunks));
+
+        // turn per-chunk newline counts into the first line of every chunk
+        int line = 1;
+        for (int i = 0; i < chunks; i++) {
+            int newlines = lines[i];
+            lines[i] = line;
+            line += newlines;
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        List<Token>[] results = new List[chunks];
+        pool.invoke(new ChunkTask(source, bounds, lines, results, 0, chunks));
+
+        int size = 1;
+        for (List<Token> result : results) {
+            size += result.size();
+        }
+
+        List<Token> tokens = new ArrayList<>(size);
+        for (List<Token> result : results) {
+            tokens.addAll(result);
+        }
         tokens.add(new Token(EOF, "", null, line));
         return tokens;
     }
 
+    private void scanChunk() {
+        while (!isAtEnd()) {
+            start = current;
+            scanToken();
+        }
+    }
+
     private void scanToken() {
         char c = advance();
         switch (c) {
@@ -143,12 +221,12 @@ class Lexer {
     }
 
     private void identifier() {
+        int hash = source.charAt(start);
         while (isAlphaNumeric(peek()))
-            advance();
+            hash = 31 * hash + advance();
 
-        String text = source.substring(start, current);
-        TokenType type = keywords.getOrDefault(text, IDENTIFIER);
-        addToken(type);
+        Name name = names.get(source, start, current, hash);
+        tokens.add(new Token(name.type, name.text, null, line, name.symbol));
     }
 
     private void number() {
@@ -169,7 +247,7 @@ class Lexer {
     }
 
     private boolean isAtEnd() {
-        return current >= source.length();
+        return current >= end;
     }
 
     private char advance() {
@@ -203,7 +281,7 @@ class Lexer {
     }
 
     private char peekNext() {
-        if (current + 1 >= source.length())
+        if (current + 1 >= end)
             return '\0';
         return source.charAt(current + 1);
     }
@@ -221,4 +299,110 @@ class Lexer {
     private boolean isAlphaNumeric(char c) {
         return isAlpha(c) || isDigit(c);
     }
+
+    /**
+     * Works on the chunks in [from, to). Without a result array a leaf only
+     * counts the newlines of its chunk into {@code lines}; with one it lexes
+     * the chunk starting at the line stored in {@code lines}.
+     */
+    private static class ChunkTask extends RecursiveAction {
+        private final String source;
+        private final int[] bounds;
+        private final int[] lines;
+        private final List<Token>[] results;
+        private final int from;
+        private final int to;
+
+        ChunkTask(String source, int[] bounds, int[] lines,
+                  List<Token>[] results, int from, int to) {
+            this.source = source;
+            this.bounds = bounds;
+            this.lines = lines;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ChunkTask(source, bounds, lines, results, from, middle),
+                        new ChunkTask(source, bounds, lines, results, middle, to));
+                return;
+            }
+
+            if (results == null) {
+                int newlines = 0;
+                for (int i = bounds[from]; i < bounds[from + 1]; i++) {
+                    if (source.charAt(i) == '\n') newlines++;
+                }
+                lines[from] = newlines;
+            } else {
+                Lexer lexer = new Lexer(source, bounds[from], bounds[from + 1], lines[from]);
+                lexer.scanChunk();
+                results[from] = lexer.tokens;
+            }
+        }
+    }
+
+    private static class Name {
+        final String text;
+        final int hash;
+        final TokenType type;
+        final Symbol symbol;
+
+        Name(String text, int hash) {
+            this.text = text;
+            this.hash = hash;
+            this.type = keywords.getOrDefault(text, IDENTIFIER);
+            this.symbol = type == IDENTIFIER ? Symbol.intern(text) : null;
+        }
+    }
+
+    /**
+     * The keywords and identifiers this lexer has already seen, keyed by
+     * their characters in the source, so a repeated name costs neither a
+     * substring nor a trip to the global symbol table.
+     */
+    private static class Names {
+        private Name[] slots = new Name[64];
+        private int size = 0;
+
+        Name get(String source, int from, int to, int hash) {
+            int length = to - from;
+            int mask = slots.length - 1;
+            for (int i = spread(hash) & mask; ; i = (i + 1) & mask) {
+                Name name = slots[i];
+                if (name == null) {
+                    name = new Name(source.substring(from, to), hash);
+                    slots[i] = name;
+                    if (++size * 2 > slots.length) grow();
+                    return name;
+                }
+
+                if (name.hash == hash && name.text.length() == length
+                        && source.regionMatches(from, name.text, 0, length)) {
+                    return name;
+                }
+            }
+        }
+
+        private void grow() {
+            Name[] old = slots;
+            slots = new Name[old.length * 2];
+            int mask = slots.length - 1;
+            for (Name name : old) {
+                if (name == null) continue;
+
+                int i = spread(name.hash) & mask;
+                while (slots[i] != null) i = (i + 1) & mask;
+                slots[i] = name;
+            }
+        }
+
+        private static int spread(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+    }
 }
@@ -0,0 +1,166 @@
+package com.imperative;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Hoists pure expressions whose value cannot change while a loop runs
+ * out of the loop, into temporaries declared just before it. An
+ * expression is invariant when the loop assigns and declares none of the
+ * names it reads and, if the loop calls anything, it reads locals only.
+ * Structurally equal expressions in one loop share their temporary.
+ * <p>
+ * The operators throw on values of the wrong type, so a temporary is only
+ * computed where the loop would have computed its expression anyway: the
+ * loop and its temporaries go under an if on the loop's entry test, and
+ * expressions are only taken from the condition and from the statements
+ * every first iteration runs, the declarations, expression and print
+ * statements the body starts with, leaving out right operands of and and
+ * or. A while loop whose condition is not pure keeps its expressions.
+ */
+class LoopInvariantCodeMotion extends AstRewriter {
+    private final Set<Symbol> locals;
+    private int hoisted = 0;
+
+    private LoopInvariantCodeMotion(Set<Symbol> locals) {
+        this.locals = locals;
+    }
+
+    static List<Stmt> apply(List<Token> params, List<Stmt> body) {
+        return new LoopInvariantCodeMotion(PureExpressions.locals(params, body)).rewrite(body);
+    }
+
+    // only loops directly in a block have somewhere to put their temporaries
+    @Override
+    void rewriteInto(Stmt statement, List<Stmt> block) {
+        Stmt rewritten = rewrite(statement);
+        if (rewritten instanceof Stmt.Loop) {
+            hoist((Stmt.Loop) rewritten, block);
+        } else {
+            block.add(rewritten);
+        }
+    }
+
+    private void hoist(Stmt.Loop loop, List<Stmt> block) {
+        Hoister hoister = new Hoister(SideEffects.of(loop));
+
+        if (loop instanceof Stmt.While) {
+            Stmt.While stmt = (Stmt.While) loop;
+            // the test is run again to guard the temporaries, which only a pure one allows
+            if (PureExpressions.key(stmt.condition) == null) {
+                block.add(loop);
+                return;
+            }
+            Expr condition = hoister.rewrite(stmt.condition);
+            Stmt body = hoister.firstIteration(stmt.body);
+            if (hoister.definitions.isEmpty()) {
+                block.add(loop);
+                return;
+            }
+            guard(stmt.condition, new Stmt.While(condition, body), hoister.definitions, block);
+        } else {
+            Stmt.For stmt = (Stmt.For) loop;
+            Stmt body = hoister.firstIteration(stmt.body);
+            if (hoister.definitions.isEmpty()) {
+                block.add(loop);
+                return;
+            }
+
+            // the bounds are computed once, ahead of the test, as the loop would
+            Expr from = bound(stmt.range.from, block);
+            Expr to = bound(stmt.range.to, block);
+            int line = PureExpressions.line(stmt.range.from);
+            Token operator = stmt.reverse ? new Token(TokenType.GREATER, ">", null, line)
+                    : new Token(TokenType.LESS, "<", null, line);
+            Stmt.Range range = from == stmt.range.from && to == stmt.range.to ? stmt.range : new Stmt.Range(from, to);
+            guard(new Expr.Binary(from, operator, to), new Stmt.For(stmt.name, stmt.reverse, range, body),
+                    hoister.definitions, block);
+        }
+    }
+
+    private Expr bound(Expr expr, List<Stmt> block) {
+        if (PureExpressions.isTrivial(expr)) return expr;
+
+        Token temporary = new Token(TokenType.IDENTIFIER, "$licm" + ++hoisted, null, PureExpressions.line(expr));
+        block.add(new Stmt.Var(temporary, expr, null));
+        return new Expr.Variable(temporary);
+    }
+
+    private static void guard(Expr test, Stmt loop, List<Stmt> definitions, List<Stmt> block) {
+        List<Stmt> statements = new ArrayList<>(definitions);
+        statements.add(loop);
+        block.add(new Stmt.If(test, new Stmt.Body(statements), null));
+    }
+
+    /**
+     * Replaces the largest invariant subexpressions of one loop.
+     */
+    private class Hoister extends AstRewriter {
+        final SideEffects effects;
+        final Map<String, Token> temporaries = new HashMap<>();
+        final List<Stmt> definitions = new ArrayList<>();
+
+        Hoister(SideEffects effects) {
+            this.effects = effects;
+        }
+
+        /**
+         * The body with the statements every iteration starts with
+         * rewritten, up to the first that may branch, loop or return.
+         */
+        Stmt firstIteration(Stmt body) {
+            if (!(body instanceof Stmt.Body)) return runsThrough(body) ? rewrite(body) : body;
+
+            List<Stmt> statements = ((Stmt.Body) body).statements;
+            List<Stmt> rewritten = new ArrayList<>(statements.size());
+            boolean changed = false;
+            int i = 0;
+            for (; i < statements.size() && runsThrough(statements.get(i)); i++) {
+                Stmt statement = rewrite(statements.get(i));
+                changed |= statement != statements.get(i);
+                rewritten.add(statement);
+            }
+            rewritten.addAll(statements.subList(i, statements.size()));
+            return changed ? new Stmt.Body(rewritten) : body;
+        }
+
+        private boolean runsThrough(Stmt statement) {
+            return statement instanceof Stmt.Var || statement instanceof Stmt.Expression
+                    || statement instanceof Stmt.Print;
+        }
+
+        private String invariantKey(Expr expr) {
+            String key = PureExpressions.key(expr);
+            if (key == null || !effects.preserves(PureExpressions.reads(expr), locals)) return null;
+            return key;
+        }
+
+        @Override
+        Expr rewrite(Expr expr) {
+            if (expr == null || PureExpressions.isTrivial(expr)) return super.rewrite(expr);
+
+            String key = invariantKey(expr);
+            if (key == null) return super.rewrite(expr);
+
+            Token temporary = temporaries.get(key);
+            if (temporary == null) {
+                temporary = new Token(TokenType.IDENTIFIER,
+                        "$licm" + ++hoisted, null, PureExpressions.line(expr));
+                temporaries.put(key, temporary);
+                definitions.add(new Stmt.Var(temporary, expr, null));
+            }
+            return new Expr.Variable(temporary);
+        }
+
+        // the right operand of and and or may not run
+        @Override
+        public Expr visitLogicalExpr(Expr.Logical expr) {
+            if (expr.operator.type == TokenType.XOR) return super.visitLogicalExpr(expr);
+            Expr left = rewrite(expr.left);
+            return left == expr.left ? expr : new Expr.Logical(left, expr.operator, expr.right);
+        }
+    }
+}
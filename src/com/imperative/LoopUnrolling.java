@@ -0,0 +1,299 @@
+package com.imperative;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Unrolls counted loops: innermost loops whose header only tests an
+ * integer counter against a bound computed outside the loop, and whose
+ * body only steps that counter by one and leaves in no other way than
+ * by returning. For loops lower to this shape, and so do while loops
+ * written the same way.
+ *
+ * With constant bounds and a trip count of at most FULL_TRIPS the body is
+ * simply repeated that many times and the loop left behind runs no more.
+ * Otherwise a copy of the loop whose body is repeated by the unroll factor
+ * runs first, for as long as one test up front proves that many exit tests
+ * would pass; the original loop then does the remaining iterations. Every
+ * repeated body skips its exit test and the phi moves of a back edge.
+ */
+class LoopUnrolling implements IrPass {
+    // how often the body is repeated per test, 1 turns unrolling off
+    static final int FACTOR = Integer.getInteger("imperative.unroll", 4);
+    static final int FULL_TRIPS = 8;
+    // instructions a loop body may have to be unrolled, and fully unrolled in total
+    private static final int BODY_SIZE = 40;
+    private static final int FULL_SIZE = 160;
+
+    private static class Loop {
+        Ir.Block header;
+        Ir.Block preheader;
+        Ir.Block latch;
+        // the blocks the loop runs besides the header, in function order
+        List<Ir.Block> body;
+        Ir.Binary test;
+        Ir.Phi counter;
+        int size;
+    }
+
+    // headers already unrolled, and the copies made of their loops
+    private final Set<Ir.Block> unrolled = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    @Override
+    public String name() {
+        return "unroll";
+    }
+
+    @Override
+    public boolean run(Ir.Function function) {
+        if (FACTOR < 2) return false;
+
+        boolean changed = false;
+        for (Loop loop : countedLoops(function)) {
+            unrolled.add(loop.header);
+            int trips = trips(loop);
+            if (trips > 0 && trips <= FULL_TRIPS && trips * loop.size <= FULL_SIZE) {
+                unrollFully(function, loop, trips);
+            } else {
+                unroll(function, loop);
+            }
+            changed = true;
+        }
+        return changed;
+    }
+
+    private List<Loop> countedLoops(Ir.Function function) {
+        Map<Ir.Block, Ir.Block> backEdges = new LinkedHashMap<>();
+        findBackEdges(function.entry(), Collections.newSetFromMap(new IdentityHashMap<>()),
+                Collections.newSetFromMap(new IdentityHashMap<>()), backEdges);
+
+        List<Loop> loops = new ArrayList<>();
+        for (Map.Entry<Ir.Block, Ir.Block> edge : backEdges.entrySet()) {
+            Loop loop = counted(function, edge.getKey(), edge.getValue(), backEdges.keySet());
+            if (loop != null) loops.add(loop);
+        }
+        return loops;
+    }
+
+    /**
+     * Maps every loop header to the block jumping back to it. A header
+     * reached by more than one back edge is not a counted loop and maps
+     * to itself.
+     */
+    private static void findBackEdges(Ir.Block block, Set<Ir.Block> visited, Set<Ir.Block> active,
+                                      Map<Ir.Block, Ir.Block> backEdges) {
+        visited.add(block);
+        active.add(block);
+        for (Ir.Block successor : block.successors()) {
+            if (active.contains(successor)) {
+                backEdges.put(successor, backEdges.containsKey(successor) ? successor : block);
+            } else if (!visited.contains(successor)) {
+                findBackEdges(successor, visited, active, backEdges);
+            }
+        }
+        active.remove(block);
+    }
+
+    private Loop counted(Ir.Function function, Ir.Block header, Ir.Block latch, Set<Ir.Block> headers) {
+        if (unrolled.contains(header) || latch == header || header.predecessors.size() != 2
+                || !(latch.terminator instanceof Ir.Jump) || !(header.terminator instanceof Ir.Branch)) {
+            return null;
+        }
+
+        Loop loop = new Loop();
+        loop.header = header;
+        loop.latch = latch;
+        loop.preheader = header.predecessors.get(0) == latch ? header.predecessors.get(1) : header.predecessors.get(0);
+
+        // the body is what reaches the latch without going through the header
+        Ir.Branch branch = (Ir.Branch) header.terminator;
+        Set<Ir.Block> body = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Ir.Block> work = new ArrayDeque<>(List.of(latch));
+        while (!work.isEmpty()) {
+            Ir.Block block = work.remove();
+            if (block == header || !body.add(block)) continue;
+            // only innermost loops, so copies never hold loops of their own
+            if (headers.contains(block)) return null;
+            work.addAll(block.predecessors);
+        }
+        // and what it leaves to other than through the header, which may only return
+        for (Ir.Block block : body) work.addAll(block.successors());
+        while (!work.isEmpty()) {
+            Ir.Block block = work.remove();
+            if (block == header || !body.add(block)) continue;
+            if (headers.contains(block)) return null;
+            work.addAll(block.successors());
+        }
+        for (Ir.Block block : body) {
+            if (block != branch.then && !body.containsAll(block.predecessors)) return null;
+        }
+        if (body.contains(loop.preheader) || !(loop.preheader.terminator instanceof Ir.Jump)) return null;
+
+        loop.body = new ArrayList<>();
+        for (Ir.Block block : function.blocks) {
+            if (!body.contains(block)) continue;
+            loop.body.add(block);
+            loop.size += block.phis.size() + block.instructions.size();
+        }
+        if (loop.size > BODY_SIZE) return null;
+
+        if (header.instructions.size() != 1 || !(header.instructions.get(0) instanceof Ir.Binary)) return null;
+        loop.test = (Ir.Binary) header.instructions.get(0);
+        boolean reverse = loop.test.operator.type == TokenType.GREATER;
+        if (!reverse && loop.test.operator.type != TokenType.LESS) return null;
+
+        if (branch.operands.get(0) != loop.test || !body.contains(branch.then) || body.contains(branch.otherwise)
+                || branch.then.predecessors.size() != 1 || !branch.then.phis.isEmpty()) {
+            return null;
+        }
+
+        if (!(loop.test.operand(0) instanceof Ir.Phi)) return null;
+        loop.counter = (Ir.Phi) loop.test.operand(0);
+        if (loop.counter.block != header) return null;
+        Ir.Value bound = loop.test.operand(1);
+        if (loop.counter.type != Ir.ValueType.INTEGER || bound.type != Ir.ValueType.INTEGER) return null;
+        if (bound instanceof Ir.Instruction && (((Ir.Instruction) bound).block == header
+                || body.contains(((Ir.Instruction) bound).block))) {
+            return null;
+        }
+
+        Ir.Value step = loop.counter.operand(header.predecessors.indexOf(latch));
+        if (!(step instanceof Ir.Binary)) return null;
+        Ir.Binary next = (Ir.Binary) step;
+        TokenType direction = reverse ? TokenType.MINUS : TokenType.PLUS;
+        if (next.operator.type != direction || next.operand(0) != loop.counter
+                || !(next.operand(1) instanceof Ir.Constant)) {
+            return null;
+        }
+        return Integer.valueOf(1).equals(((Ir.Constant) next.operand(1)).value) ? loop : null;
+    }
+
+    /**
+     * The number of iterations when both bounds are constants, else 0.
+     */
+    private static int trips(Loop loop) {
+        Ir.Value from = loop.counter.operand(loop.header.predecessors.indexOf(loop.preheader));
+        Ir.Value to = loop.test.operand(1);
+        if (!(from instanceof Ir.Constant) || !(to instanceof Ir.Constant)) return 0;
+
+        long trips = (long) (int) ((Ir.Constant) to).value - (int) ((Ir.Constant) from).value;
+        if (loop.test.operator.type == TokenType.GREATER) trips = -trips;
+        return trips > FULL_TRIPS ? 0 : (int) trips;
+    }
+
+    /**
+     * Copies the loop body once for an iteration entered with the given
+     * values of the header phis, which the test has already passed. Returns
+     * the copies of the blocks and fills in the header phi values the
+     * iteration leaves for the next one.
+     */
+    private static Map<Ir.Block, Ir.Block> iteration(Ir.Function function, Loop loop,
+                                                     Map<Ir.Value, Ir.Value> entering, Map<Ir.Value, Ir.Value> leaving) {
+        Map<Ir.Value, Ir.Value> values = new IdentityHashMap<>(entering);
+        values.put(loop.test, function.constant(true));
+        Map<Ir.Block, Ir.Block> copies = function.copy(loop.body, values);
+
+        int back = loop.header.predecessors.indexOf(loop.latch);
+        for (Ir.Phi phi : loop.header.phis) {
+            Ir.Value operand = phi.operand(back);
+            leaving.put(phi, values.getOrDefault(operand, operand));
+        }
+        return copies;
+    }
+
+    private static Ir.Block entry(Loop loop) {
+        return ((Ir.Branch) loop.header.terminator).then;
+    }
+
+    private void unrollFully(Ir.Function function, Loop loop, int trips) {
+        int front = loop.header.predecessors.indexOf(loop.preheader);
+        Map<Ir.Value, Ir.Value> state = new IdentityHashMap<>();
+        for (Ir.Phi phi : loop.header.phis) {
+            state.put(phi, phi.operand(front));
+        }
+
+        Ir.Block last = loop.preheader;
+        for (int i = 0; i < trips; i++) {
+            Map<Ir.Value, Ir.Value> leaving = new IdentityHashMap<>();
+            Map<Ir.Block, Ir.Block> copies = iteration(function, loop, state, leaving);
+            chain(last, loop.header, copies.get(entry(loop)));
+            last = copies.get(loop.latch);
+            state = leaving;
+        }
+
+        // the loop is left behind to take the last exit test, which now fails
+        ((Ir.Jump) last.terminator).target = loop.header;
+        loop.header.predecessors.set(front, last);
+        for (Ir.Phi phi : loop.header.phis) {
+            phi.operands.set(front, state.get(phi));
+        }
+    }
+
+    private void unroll(Ir.Function function, Loop loop) {
+        int front = loop.header.predecessors.indexOf(loop.preheader);
+
+        // the header of the unrolled loop, entered instead of the original
+        Ir.Block header = function.newBlock();
+        unrolled.add(header);
+        Map<Ir.Value, Ir.Value> state = new IdentityHashMap<>();
+        List<Ir.Phi> phis = new ArrayList<>();
+        for (Ir.Phi phi : loop.header.phis) {
+            Ir.Phi copy = function.number(new Ir.Phi());
+            copy.block = header;
+            copy.operands.add(phi.operand(front));
+            header.phis.add(copy);
+            phis.add(copy);
+            state.put(phi, copy);
+        }
+        ((Ir.Jump) loop.preheader.terminator).target = header;
+        header.predecessors.add(loop.preheader);
+
+        Ir.Remains remains = function.number(new Ir.Remains(state.get(loop.counter), loop.test.operand(1),
+                FACTOR, loop.test.operator.type == TokenType.GREATER));
+        remains.block = header;
+        header.instructions.add(remains);
+
+        Ir.Block last = header;
+        for (int i = 0; i < FACTOR; i++) {
+            Map<Ir.Value, Ir.Value> leaving = new IdentityHashMap<>();
+            Map<Ir.Block, Ir.Block> copies = iteration(function, loop, state, leaving);
+            Ir.Block entry = copies.get(entry(loop));
+            if (i == 0) {
+                header.terminator = new Ir.Branch(remains, entry, loop.header);
+                entry.predecessors.set(0, header);
+            } else {
+                chain(last, loop.header, entry);
+            }
+            last = copies.get(loop.latch);
+            state = leaving;
+        }
+
+        ((Ir.Jump) last.terminator).target = header;
+        header.predecessors.add(last);
+        for (int i = 0; i < phis.size(); i++) {
+            phis.get(i).operands.add(state.get(loop.header.phis.get(i)));
+        }
+
+        // once fewer iterations remain, the original loop takes over
+        loop.header.predecessors.set(front, header);
+        for (int i = 0; i < phis.size(); i++) {
+            loop.header.phis.get(i).operands.set(front, phis.get(i));
+        }
+    }
+
+    /**
+     * Makes the block that ended one iteration jump to the entry of the
+     * next, where the copy still names the original header as predecessor.
+     */
+    private static void chain(Ir.Block from, Ir.Block header, Ir.Block entry) {
+        ((Ir.Jump) from.terminator).target = entry;
+        entry.predecessors.set(entry.predecessors.indexOf(header), from);
+    }
+}
@@ -3,22 +3,63 @@ package com.imperative;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintWriter;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 public class Main {
     private static final Evaluator eval = new Evaluator();
     private static boolean hadError = false;
     private static boolean hadRuntimeError = false;
+    private static boolean parallel = false;
+    private static boolean lazy = false;
+    // where --profile writes collapsed stacks, null when not profiling
+    private static String profile = null;
+    // where --stats writes its JSON, empty for stderr and null when off
+    private static String statsFile = null;
+    // set by the execution options, which run the program like --stats
+    private static boolean run = false;
 
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: Main [source]");
-            System.exit(69);
-        } else if (args.length == 1) {
-            runFile(args[0]);
+        String path = null;
+        for (String arg : args) {
+            if (arg.equals("--parallel")) {
+                parallel = true;
+            } else if (arg.equals("--lazy")) {
+                lazy = true;
+            } else if (arg.equals("--profile")) {
+                profile = "profile.collapsed";
+            } else if (arg.startsWith("--profile=")) {
+                profile = arg.substring("--profile=".length());
+            } else if (arg.equals("--stats")) {
+                statsFile = "";
+            } else if (arg.startsWith("--stats=")) {
+                statsFile = arg.substring("--stats=".length());
+            } else if (arg.equals("--no-tiering")) {
+                eval.tiering = false;
+                run = true;
+            } else if (arg.equals("--tracing")) {
+                eval.tracing = true;
+                run = true;
+            } else if (arg.equals("--no-optimize")) {
+                eval.optimize = false;
+                run = true;
+            } else if (arg.equals("--dump-ir")) {
+                eval.dumpIr = true;
+                run = true;
+            } else if (arg.startsWith("--") || path != null) {
+                System.out.println("Usage: Main [--parallel] [--lazy] [--profile[=file]] [--stats[=file]] [--no-tiering] [--tracing] [--no-optimize] [--dump-ir] [source]");
+                System.exit(69);
+            } else {
+                path = arg;
+            }
+        }
+
+        if (path != null) {
+            runFile(path);
         } else {
             runPrompt();
         }
@@ -43,11 +84,32 @@ public class Main {
         }
     }
 
-    private static void run(String source) {
-        Lexer lexer = new Lexer(source);
-        List<Token> tokens = lexer.scanTokens();
-        Parser parser = new Parser(tokens, eval);
-        List<Stmt> statements = parser.parse();
+    private static void run(String source) throws IOException {
+        Stats stats = new Stats();
+
+        stats.begin("lex");
+        List<Token> tokens;
+        if (parallel) {
+            tokens = Lexer.scanTokensParallel(source, ForkJoinPool.commonPool());
+        } else {
+            tokens = new Lexer(source).scanTokens();
+        }
+        stats.end(tokens.size());
+
+        stats.begin("parse");
+        Parser parser = new Parser(tokens, eval, lazy);
+        List<Stmt> statements;
+        if (parallel) {
+            statements = parser.parseParallel(ForkJoinPool.commonPool());
+        } else {
+            statements = parser.parse();
+        }
+        stats.end(statements.size());
+
+        if (profile != null || statsFile != null || run) {
+            if (!hadError) execute(statements, tokens, stats);
+            return;
+        }
 
         AstPrinter printer = new AstPrinter();
 
@@ -59,6 +121,55 @@ public class Main {
        //eval.interpret(statements);
     }
 
+    /**
+     * Runs the program for --profile, --stats and the execution options and
+     * writes the reports asked for.
+     */
+    private static void execute(List<Stmt> statements, List<Token> tokens, Stats stats) throws IOException {
+        stats.tokens = tokens.size();
+        stats.countNodes(statements);
+        long calls = eval.routineCalls;
+        eval.peakEnvironmentDepth = 0;
+
+        stats.begin("execute");
+        if (profile != null) {
+            profile(statements);
+        } else {
+            eval.interpret(statements);
+        }
+        stats.end(statements.size());
+
+        stats.routineCalls = eval.routineCalls - calls;
+        stats.peakEnvironmentDepth = eval.peakEnvironmentDepth;
+
+        if (statsFile == null) return;
+        if (statsFile.isEmpty()) {
+            System.err.println(stats.toJson());
+        } else {
+            Files.write(Paths.get(statsFile), (stats.toJson() + "\n").getBytes(Charset.defaultCharset()));
+        }
+    }
+
+    /**
+     * Runs the program under the profiler, then prints the per routine and
+     * per line table to stderr and writes the collapsed stacks to the
+     * profile file.
+     */
+    private static void profile(List<Stmt> statements) throws IOException {
+        Profiler profiler = new Profiler();
+        eval.profiler = profiler;
+        try {
+            eval.interpret(statements);
+        } finally {
+            eval.profiler = null;
+        }
+
+        profiler.printSummary(System.err);
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(profile)))) {
+            profiler.writeCollapsed(out);
+        }
+    }
+
     static void error(int line) {
         report(line, "", "Unexpected character.");
     }
@@ -77,6 +188,13 @@ public class Main {
     }
 
     static void runtimeError(RuntimeError error) {
+        RuntimeErrorEvent event = new RuntimeErrorEvent();
+        if (event.shouldCommit()) {
+            event.message = error.getMessage();
+            event.line = error.token.line;
+            event.commit();
+        }
+
         System.err.println(error.getMessage() +
                 "\n[line " + error.token.line + "]");
         hadRuntimeError = true;
@@ -0,0 +1,185 @@
+package com.imperative;
+
+/**
+ * Semantics of the operators, shared by every execution tier so that the
+ * tree walker and compiled code always compute the same values. Mixed
+ * integer and real operands are widened to real.
+ */
+final class Operators {
+    private Operators() {
+    }
+
+    static Object binary(TokenType operator, Object left, Object right) {
+        switch (operator) {
+            case GREATER:
+                return greater(left, right);
+            case GREATER_EQUAL:
+                return greaterEqual(left, right);
+            case LESS:
+                return less(left, right);
+            case LESS_EQUAL:
+                return lessEqual(left, right);
+            case SLASH_EQUAL:
+                return !isEqual(left, right);
+            case EQUAL_EQUAL:
+                return isEqual(left, right);
+            case PLUS:
+                return add(left, right);
+            case MINUS:
+                return subtract(left, right);
+            case SLASH:
+                return divide(left, right);
+            case STAR:
+                return multiply(left, right);
+        }
+
+        return null;
+    }
+
+    static boolean greater(Object left, Object right) {
+        if (left instanceof Double && right instanceof Integer) {
+            return (double) left > (int) right;
+        }
+
+        if (left instanceof Integer && right instanceof Double) {
+            return (int) left > (double) right;
+        }
+
+        if (left instanceof Double && right instanceof Double) {
+            return (double) left > (double) right;
+        }
+        return (int) left > (int) right;
+    }
+
+    static boolean greaterEqual(Object left, Object right) {
+        if (left instanceof Double && right instanceof Integer) {
+            return (double) left >= (int) right;
+        }
+
+        if (left instanceof Integer && right instanceof Double) {
+            return (int) left >= (double) right;
+        }
+
+        if (left instanceof Double && right instanceof Double) {
+            return (double) left >= (double) right;
+        }
+        return (int) left >= (int) right;
+    }
+
+    static boolean less(Object left, Object right) {
+        if (left instanceof Double && right instanceof Integer) {
+            return (double) left < (int) right;
+        }
+
+        if (left instanceof Integer && right instanceof Double) {
+            return (int) left < (double) right;
+        }
+
+        if (left instanceof Double && right instanceof Double) {
+            return (double) left < (double) right;
+        }
+        return (int) left < (int) right;
+    }
+
+    static boolean lessEqual(Object left, Object right) {
+        if (left instanceof Double && right instanceof Integer) {
+            return (double) left <= (int) right;
+        }
+
+        if (left instanceof Integer && right instanceof Double) {
+            return (int) left <= (double) right;
+        }
+
+        if (left instanceof Double && right instanceof Double) {
+            return (double) left <= (double) right;
+        }
+        return (int) left <= (int) right;
+    }
+
+    static Object add(Object left, Object right) {
+        if (left instanceof Double && right instanceof Integer) {
+            return (double) left + (int) right;
+        }
+
+        if (left instanceof Integer && right instanceof Double) {
+            return (int) left + (double) right;
+        }
+
+        if (left instanceof Double && right instanceof Double) {
+            return (double) left + (double) right;
+        }
+        return (int) left + (int) right;
+    }
+
+    static Object subtract(Object left, Object right) {
+        if (left instanceof Double && right instanceof Integer) {
+            return (double) left - (int) right;
+        }
+
+        if (left instanceof Integer && right instanceof Double) {
+            return (int) left - (double) right;
+        }
+
+        if (left instanceof Double && right instanceof Double) {
+            return (double) left - (double) right;
+        }
+        return (int) left - (int) right;
+    }
+
+    static Object divide(Object left, Object right) {
+        if (left instanceof Double && right instanceof Integer) {
+            return (double) left / (int) right;
+        }
+
+        if (left instanceof Integer && right instanceof Double) {
+            return (int) left / (double) right;
+        }
+
+        if (left instanceof Double && right instanceof Double) {
+            return (double) left / (double) right;
+        }
+        return (int) left / (int) right;
+    }
+
+    static Object multiply(Object left, Object right) {
+        if (left instanceof Double && right instanceof Integer) {
+            return (double) left * (int) right;
+        }
+
+        if (left instanceof Integer && right instanceof Double) {
+            return (int) left * (double) right;
+        }
+
+        if (left instanceof Double && right instanceof Double) {
+            return (double) left * (double) right;
+        }
+        return (int) left * (int) right;
+    }
+
+    static Object negate(Token operator, Object operand) {
+        if (operand instanceof Integer) return -(int) operand;
+        if (operand instanceof Double) return -(double) operand;
+        throw new RuntimeError(operator, "Operand must be a number.");
+    }
+
+    static boolean isTruthy(Object object) {
+        if (object == null)
+            return false;
+        if (object instanceof Boolean)
+            return (boolean) object;
+        return true;
+    }
+
+    static boolean isEqual(Object a, Object b) {
+        if (a == null && b == null) return true;
+        if (a == null) return false;
+
+        return a.equals(b);
+    }
+
+    static String stringify(Object object) {
+        if (object == null) return "<null>";
+
+        return object.toString();
+    }
+}
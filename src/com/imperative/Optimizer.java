@@ -0,0 +1,19 @@
+package com.imperative;
+
+import java.util.List;
+
+/**
+ * The tree passes run over a routine body before its first call.
+ */
+final class Optimizer {
+    private Optimizer() {
+    }
+
+    static List<Stmt> optimize(Stmt.Routine declaration) {
+        List<Stmt> body = declaration.body();
+        body = ScalarReplacement.apply(declaration.params, body);
+        body = LoopInvariantCodeMotion.apply(declaration.params, body);
+        body = CommonSubexpressions.apply(declaration.params, body);
+        return body;
+    }
+}
@@ -1,18 +1,75 @@
 package com.imperative;
 
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 import static com.imperative.TokenType.*;
 
 class Parser {
+    // fewest tokens worth parsing on a separate worker thread
+    private static final int SPAN_GRAIN = 1 << 12;
+
+    private static final int ASSIGNMENT = 1;
+    private static final Map<TokenType, Integer> bindingPower;
+
+    static {
+        bindingPower = new EnumMap<>(TokenType.class);
+        bindingPower.put(WALRUS, ASSIGNMENT);
+        bindingPower.put(OR, 2);
+        bindingPower.put(AND, 3);
+        bindingPower.put(XOR, 4);
+        bindingPower.put(SLASH_EQUAL, 5);
+        bindingPower.put(EQUAL_EQUAL, 5);
+        bindingPower.put(GREATER, 6);
+        bindingPower.put(GREATER_EQUAL, 6);
+        bindingPower.put(LESS, 6);
+        bindingPower.put(LESS_EQUAL, 6);
+        bindingPower.put(MINUS, 7);
+        bindingPower.put(PLUS, 7);
+        bindingPower.put(SLASH, 8);
+        bindingPower.put(STAR, 8);
+        bindingPower.put(PERCENT, 8);
+    }
+
     private final List<Token> tokens;
     private final Evaluator evaluator;
-    private int current = 0;
+    private final boolean lazy;
+    private final int end;
+    private final Token eof;
+    private int current;
+    private boolean hadError = false;
 
     Parser(List<Token> tokens, Evaluator eval) {
+        this(tokens, eval, false);
+    }
+
+    /**
+     * With {@code lazy} set, routine bodies are only skipped over at parse
+     * time and parsed the first time the routine body is asked for.
+     */
+    Parser(List<Token> tokens, Evaluator eval, boolean lazy) {
+        this(tokens, 0, tokens.size() - 1, eval, lazy);
+    }
+
+    /**
+     * Parses only tokens[from, to); the token at {@code to} (or a synthetic
+     * one past the last token) acts as the end of input.
+     */
+    private Parser(List<Token> tokens, int from, int to, Evaluator eval, boolean lazy) {
         this.tokens = tokens;
         this.evaluator = eval;
+        this.lazy = lazy;
+        this.current = from;
+        this.end = to;
+        if (to < tokens.size() && tokens.get(to).type == EOF) {
+            this.eof = tokens.get(to);
+        } else {
+            this.eof = new Token(EOF, "", null, tokens.get(to - 1).line);
+        }
     }
 
     List<Stmt> parse() {
@@ -24,6 +81,46 @@ class Parser {
         return statements;
     }
 
+    /**
+     * Parses the program with top-level declarations spread over the pool.
+     * A pre-scan cuts the token stream at the end of every top-level
+     * declaration or statement. Runs of spans are parsed concurrently, but
+     * {@code type} declarations act as barriers: everything before one is
+     * parsed before the alias is registered, and everything after it only
+     * once it is, so alias lookups see exactly what a sequential parse would.
+     */
+    List<Stmt> parseParallel(ForkJoinPool pool) {
+        if (end - current < 2 * SPAN_GRAIN) {
+            return parse();
+        }
+
+        List<Integer> cuts = new ArrayList<>();
+        cuts.add(current);
+        for (int i = current; i < end; ) {
+            i = topLevelEnd(i);
+            cuts.add(i);
+        }
+
+        List<Stmt> statements = new ArrayList<>();
+        int batch = 0;
+        for (int span = 0; span < cuts.size() - 1; span++) {
+            if (tokens.get(cuts.get(span)).type != TYPE) continue;
+
+            if (batch < span) {
+                statements.addAll(pool.invoke(new SpanTask(cuts, batch, span)));
+            }
+            statements.addAll(new Parser(tokens, cuts.get(span), cuts.get(span + 1), evaluator, lazy).parse());
+            batch = span + 1;
+        }
+
+        if (batch < cuts.size() - 1) {
+            statements.addAll(pool.invoke(new SpanTask(cuts, batch, cuts.size() - 1)));
+        }
+
+        current = end;
+        return statements;
+    }
+
     private Stmt declaration() {
         try {
             if (match(ARRAY)) return arrayDeclaration();
@@ -45,6 +142,9 @@ class Parser {
         Type type = getType();
 
         consume("Expected ';' or newline after type declaration.", SEMICOLON);
+
+        // later declarations refer to the alias while they are still being parsed
+        evaluator.globals.defineTypeAlias(name, type);
         return new Stmt.TypeDeclare(name, type);
     }
 
@@ -87,10 +187,37 @@ class Parser {
         }
 
         consume("Expected 'is' before " + "routine" + " body.", IS);
+        if (lazy) {
+            int from = current;
+            int to = skip(from, 1);
+            if (to >= 0) {
+                current = to;
+                return new Stmt.Routine(name, parameters, types,
+                        () -> new Parser(tokens, from, to, evaluator, true).deferredBody(name),
+                        returnType);
+            }
+            // unbalanced body: parse it now so the error is reported up front
+        }
+
         List<Stmt> body = block();
         return new Stmt.Routine(name, parameters, types, body, returnType);
     }
 
+    private List<Stmt> deferredBody(Token name) {
+        List<Stmt> body;
+        try {
+            body = block();
+        } catch (ParserError error) {
+            hadError = true;
+            body = null;
+        }
+
+        if (hadError) {
+            throw new RuntimeError(name, "Syntax error in body of routine '" + name.lexeme + "'.");
+        }
+        return body;
+    }
+
     private Stmt recordDeclaration() {
         Token name = consume("Expected record name.", IDENTIFIER);
 
@@ -141,61 +268,50 @@ class Parser {
     }
 
     private Expr expression() {
-        return assignment();
+        return expression(ASSIGNMENT);
     }
 
-    private Expr assignment() {
-
-        Expr expr = or();
-        if (match(WALRUS)) {
-            Token assign = previous();
-            Expr value = assignment();
+    /**
+     * Precedence climbing over the binding power table: parses a unary
+     * operand, then keeps folding in infix operators that bind at least as
+     * tightly as {@code minPower}. Left-associative operators parse their
+     * right operand one level up, so a chain like a + b + c stays in this
+     * loop instead of recursing once per operator.
+     */
+    private Expr expression(int minPower) {
+        Expr expr = unary();
 
-            if (expr instanceof Expr.Variable) {
-                Token name = ((Expr.Variable) expr).name;
-                return new Expr.Assign(name, value);
+        while (true) {
+            Integer power = bindingPower.get(peek().type);
+            if (power == null || power < minPower) {
+                return expr;
             }
 
-            error(assign, "Invalid assignment target.");
-        }
-
-        return expr;
-    }
-
-    private Expr or() {
-        Expr expr = and();
-
-        while (match(OR)) {
-            Token operator = previous();
-            Expr right = and();
-            expr = new Expr.Logical(expr, operator, right);
-        }
-
-        return expr;
-    }
-
-    private Expr and() {
-        Expr expr = xor();
-
-        while (match(AND)) {
-            Token operator = previous();
-            Expr right = xor();
-            expr = new Expr.Logical(expr, operator, right);
-        }
+            Token operator = advance();
+            if (operator.type == WALRUS) {
+                // right-associative, and nothing binds looser
+                Expr value = expression(ASSIGNMENT);
 
-        return expr;
-    }
+                if (expr instanceof Expr.Variable) {
+                    Token name = ((Expr.Variable) expr).name;
+                    return new Expr.Assign(name, value);
+                }
 
-    private Expr xor() {
-        Expr expr = equality();
+                error(operator, "Invalid assignment target.");
+                return expr;
+            }
 
-        while (match(XOR)) {
-            Token operator = previous();
-            Expr right = equality();
-            expr = new Expr.Logical(expr, operator, right);
+            Expr right = expression(power + 1);
+            switch (operator.type) {
+                case OR:
+                case AND:
+                case XOR:
+                    expr = new Expr.Logical(expr, operator, right);
+                    break;
+                default:
+                    expr = new Expr.Binary(expr, operator, right);
+            }
         }
-
-        return expr;
     }
 
     private Stmt statement() {
@@ -284,64 +400,24 @@ class Parser {
         return new Stmt.Expression(expr);
     }
 
-    private Expr equality() {
-        Expr expr = comparison();
-
-        while (match(SLASH_EQUAL, EQUAL_EQUAL)) {
-            Token operator = previous();
-            Expr right = comparison();
-            expr = new Expr.Binary(expr, operator, right);
+    private Expr unary() {
+        if (!check(NOT) && !check(MINUS)) {
+            return call();
         }
 
-        return expr;
-    }
-
-    private Expr comparison() {
-        Expr expr = addition();
-
-        while (match(GREATER, GREATER_EQUAL, LESS, LESS_EQUAL)) {
-            Token operator = previous();
-            Expr right = addition();
-            expr = new Expr.Binary(expr, operator, right);
+        List<Token> operators = new ArrayList<>();
+        while (check(NOT) || check(MINUS)) {
+            operators.add(advance());
         }
 
-        return expr;
-    }
-
-    private Expr addition() {
-        Expr expr = multiplication();
-
-        while (match(MINUS, PLUS)) {
-            Token operator = previous();
-            Expr right = multiplication();
-            expr = new Expr.Binary(expr, operator, right);
+        Expr expr = call();
+        for (int i = operators.size() - 1; i >= 0; i--) {
+            expr = new Expr.Unary(operators.get(i), expr);
         }
 
         return expr;
     }
 
-    private Expr multiplication() {
-        Expr expr = unary();
-
-        while (match(SLASH, STAR, PERCENT)) {
-            Token operator = previous();
-            Expr right = unary();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-
-        return expr;
-    }
-
-    private Expr unary() {
-        if (match(NOT, MINUS)) {
-            Token operator = previous();
-            Expr right = unary();
-            return new Expr.Unary(operator, right);
-        }
-
-        return call();
-    }
-
     private Expr call() {
         Expr expr = primary();
 
@@ -442,7 +518,7 @@ class Parser {
     }
 
     private Token peek() {
-        return tokens.get(current);
+        return current < end ? tokens.get(current) : eof;
     }
 
     private Token previous() {
@@ -451,6 +527,7 @@ class Parser {
 
     private ParserError error(Token token, String message) {
         Main.error(token, message);
+        hadError = true;
         return new ParserError();
     }
 
@@ -475,7 +552,77 @@ class Parser {
         }
     }
 
+    /**
+     * Returns the index just past the top-level declaration or statement
+     * starting at {@code from}.
+     */
+    private int topLevelEnd(int from) {
+        int to = skip(from, 0);
+        return to >= 0 ? to : end;
+    }
+
+    /**
+     * Skips tokens starting at {@code from} while already nested
+     * {@code depth} constructs deep. Every construct that is closed by
+     * 'end' opens with one of 'routine', 'record', 'loop' or 'if', so it
+     * is enough to balance those against 'end' and stop at the first ';'
+     * or 'end' that leaves the nesting at zero. Returns the index past
+     * that token, which is the end of input when it is the last one, or
+     * -1 if there is none.
+     */
+    private int skip(int from, int depth) {
+        for (int i = from; i < end; i++) {
+            switch (tokens.get(i).type) {
+                case ROUTINE:
+                case RECORD:
+                case LOOP:
+                case IF:
+                    depth++;
+                    break;
+                case END:
+                    if (--depth <= 0) return i + 1;
+                    break;
+                case SEMICOLON:
+                    if (depth == 0) return i + 1;
+                    break;
+                default:
+            }
+        }
+
+        return -1;
+    }
+
     private static class ParserError extends RuntimeException {
     }
 
+    /**
+     * Parses the spans [from, to) of the pre-scanned cut list, splitting
+     * the range between workers while it is larger than the grain.
+     */
+    private class SpanTask extends RecursiveTask<List<Stmt>> {
+        private final List<Integer> cuts;
+        private final int from;
+        private final int to;
+
+        SpanTask(List<Integer> cuts, int from, int to) {
+            this.cuts = cuts;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected List<Stmt> compute() {
+            if (to - from < 2 || cuts.get(to) - cuts.get(from) < SPAN_GRAIN) {
+                return new Parser(tokens, cuts.get(from), cuts.get(to), evaluator, lazy).parse();
+            }
+
+            int middle = (from + to) >>> 1;
+            SpanTask right = new SpanTask(cuts, middle, to);
+            right.fork();
+            List<Stmt> statements = new SpanTask(cuts, from, middle).compute();
+            statements.addAll(right.join());
+            return statements;
+        }
+    }
+
 }
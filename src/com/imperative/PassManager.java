@@ -0,0 +1,93 @@
+package com.imperative;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs the IR passes in order, round after round, until a whole round
+ * changes nothing. Each pass is timed, and the totals over the run show
+ * up in --stats; with --dump-ir the function is printed after lowering
+ * and after every pass that changed it.
+ */
+class PassManager {
+    // a safety net, the passes only shrink the function
+    private static final int MAX_ROUNDS = 10;
+
+    private static class Timing {
+        long runs;
+        long changes;
+        long nanos;
+    }
+
+    private static final Map<String, Timing> timings = new LinkedHashMap<>();
+
+    private final List<IrPass> passes;
+    private final PrintStream dump;
+
+    PassManager(List<IrPass> passes, PrintStream dump) {
+        this.passes = passes;
+        this.dump = dump;
+    }
+
+    /**
+     * The passes every routine lowered to IR goes through, starting with
+     * inlining when there are routines to inline, and specializing calls
+     * to the others that pass constants.
+     */
+    static PassManager standard(Map<Symbol, Inliner.Target> targets, PrintStream dump) {
+        List<IrPass> passes = new ArrayList<>();
+        Inliner inliner = targets != null && !targets.isEmpty() ? new Inliner(targets) : null;
+        if (inliner != null) passes.add(inliner);
+        passes.add(new TypeInference());
+        passes.add(new ConstantPropagation());
+        if (inliner != null) passes.add(new Specializer(targets, inliner));
+        passes.add(new DeadCodeElimination());
+        passes.add(new SimplifyCfg());
+        passes.add(new LoopUnrolling());
+        return new PassManager(passes, dump);
+    }
+
+    void run(Ir.Function function) {
+        if (dump != null) dump.print("; lowered\n" + function);
+
+        for (int round = 0; round < MAX_ROUNDS; round++) {
+            boolean changed = false;
+            for (IrPass pass : passes) {
+                long start = System.nanoTime();
+                boolean result = pass.run(function);
+                record(pass.name(), result, System.nanoTime() - start);
+
+                if (result && dump != null) dump.print("; after " + pass.name() + "\n" + function);
+                changed |= result;
+            }
+            if (!changed) return;
+        }
+    }
+
+    private static synchronized void record(String name, boolean changed, long nanos) {
+        Timing timing = timings.computeIfAbsent(name, key -> new Timing());
+        timing.runs++;
+        if (changed) timing.changes++;
+        timing.nanos += nanos;
+    }
+
+    /**
+     * Per pass totals as a JSON array, for --stats.
+     */
+    static synchronized String toJson() {
+        StringBuilder json = new StringBuilder("[");
+        for (Map.Entry<String, Timing> entry : timings.entrySet()) {
+            if (json.length() > 1) json.append(',');
+            Timing timing = entry.getValue();
+            json.append("{\"name\":\"").append(entry.getKey())
+                    .append("\",\"runs\":").append(timing.runs)
+                    .append(",\"changes\":").append(timing.changes)
+                    .append(",\"wallNanos\":").append(timing.nanos)
+                    .append('}');
+        }
+        return json.append(']').toString();
+    }
+}
@@ -0,0 +1,37 @@
+package com.imperative;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("com.imperative.Phase")
+@Label("Interpreter Phase")
+@Category({"Imperative", "Phases"})
+@Description("Lexing, parsing or executing a program")
+@StackTrace(false)
+class PhaseEvent extends Event {
+    @Label("Phase")
+    String phase;
+
+    @Label("Items")
+    @Description("Tokens produced by lexing, statements produced by parsing or run by execution")
+    int items;
+
+    static PhaseEvent start(String phase) {
+        PhaseEvent event = new PhaseEvent();
+        event.phase = phase;
+        event.begin();
+        return event;
+    }
+
+    void finish(int items) {
+        end();
+        if (shouldCommit()) {
+            this.items = items;
+            commit();
+        }
+    }
+}
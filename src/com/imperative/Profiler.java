@@ -0,0 +1,310 @@
+package com.imperative;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts executions, self and total time and allocated bytes per routine
+ * and per source line. The Evaluator reports every statement it executes
+ * and every routine call; the profiler keeps them as a call tree whose
+ * paths become collapsed stacks ("<main>;fib;fib:2 1234") for flame graph
+ * tools, plus a flat table summed over the tree.
+ */
+class Profiler implements Stmt.Visitor<Token>, Expr.Visitor<Token> {
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static class Entry {
+        final String name;
+        long count;
+        long self;
+        long total;
+        long allocated;
+        // activations on the stack, so recursion adds to total only once
+        int active;
+
+        Entry(String name) {
+            this.name = name;
+        }
+    }
+
+    private static class Node {
+        final Entry entry;
+        final Node parent;
+        final Map<Entry, Node> children = new LinkedHashMap<>();
+        long self;
+
+        Node(Entry entry, Node parent) {
+            this.entry = entry;
+            this.parent = parent;
+        }
+    }
+
+    private static class Frame {
+        Node node;
+        long start;
+        long allocated;
+        long childTime;
+        long childAllocated;
+    }
+
+    private final Map<String, Entry> routines = new LinkedHashMap<>();
+    private final Map<String, Entry> lines = new HashMap<>();
+    private final Map<Stmt, Entry> statements = new IdentityHashMap<>();
+    private final Node root = new Node(new Entry("<main>"), null);
+    private final List<Frame> stack = new ArrayList<>();
+    private final List<String> callers = new ArrayList<>();
+    private final long thread = Thread.currentThread().getId();
+    private int depth = 0;
+    // lines are named after the routine they are in
+    private String routine = "<main>";
+
+    void enterRoutine(Stmt.Routine declaration) {
+        Entry entry = routines.computeIfAbsent(declaration.name.lexeme, Entry::new);
+        callers.add(routine);
+        routine = entry.name;
+        push(entry);
+    }
+
+    void exitRoutine() {
+        pop();
+        routine = callers.remove(callers.size() - 1);
+    }
+
+    void enterStatement(Stmt statement) {
+        Entry entry = statements.get(statement);
+        if (entry == null) {
+            entry = lineEntry(statement);
+            statements.put(statement, entry);
+        }
+        push(entry);
+    }
+
+    void exitStatement() {
+        pop();
+    }
+
+    private Entry lineEntry(Stmt statement) {
+        Token token = statement.accept(this);
+        String name = routine + ":" + (token == null ? "?" : token.line);
+        return lines.computeIfAbsent(name, Entry::new);
+    }
+
+    private void push(Entry entry) {
+        Node parent = depth == 0 ? root : stack.get(depth - 1).node;
+        Node node = parent;
+        // a statement on the same line as its parent adds no frame
+        if (parent.entry != entry) {
+            node = parent.children.get(entry);
+            if (node == null) {
+                node = new Node(entry, parent);
+                parent.children.put(entry, node);
+            }
+        }
+
+        if (depth == stack.size()) stack.add(new Frame());
+        Frame frame = stack.get(depth++);
+        frame.node = node;
+        frame.childTime = 0;
+        frame.childAllocated = 0;
+        if (node != parent) {
+            entry.count++;
+            entry.active++;
+        }
+        frame.allocated = threads.getThreadAllocatedBytes(thread);
+        frame.start = System.nanoTime();
+    }
+
+    private void pop() {
+        long now = System.nanoTime();
+        long allocated = threads.getThreadAllocatedBytes(thread);
+        Frame frame = stack.get(--depth);
+        long elapsed = now - frame.start;
+        long bytes = allocated - frame.allocated;
+
+        Node node = frame.node;
+        Node parent = depth == 0 ? root : stack.get(depth - 1).node;
+        if (node != parent) {
+            Entry entry = node.entry;
+            long self = elapsed - frame.childTime;
+            node.self += self;
+            entry.self += self;
+            entry.allocated += bytes - frame.childAllocated;
+            if (--entry.active == 0) entry.total += elapsed;
+        }
+
+        if (depth > 0) {
+            Frame caller = stack.get(depth - 1);
+            if (node != parent) {
+                caller.childTime += elapsed;
+                caller.childAllocated += bytes;
+            } else {
+                // a folded frame's own time already belongs to its parent
+                caller.childTime += frame.childTime;
+                caller.childAllocated += frame.childAllocated;
+            }
+        }
+    }
+
+    /**
+     * Writes one line per call tree path: the frames joined by ';' and the
+     * self time in nanoseconds spent at the end of that path.
+     */
+    void writeCollapsed(PrintWriter out) {
+        writeCollapsed(out, root, new StringBuilder(root.entry.name));
+        out.flush();
+    }
+
+    private void writeCollapsed(PrintWriter out, Node node, StringBuilder path) {
+        if (node.self > 0) {
+            out.append(path).append(' ').println(node.self);
+        }
+
+        int length = path.length();
+        for (Node child : node.children.values()) {
+            path.append(';').append(child.entry.name);
+            writeCollapsed(out, child, path);
+            path.setLength(length);
+        }
+    }
+
+    void printSummary(PrintStream out) {
+        List<Entry> entries = new ArrayList<>(routines.values());
+        entries.addAll(lines.values());
+        entries.sort((a, b) -> Long.compare(b.self, a.self));
+
+        out.printf("%-32s %12s %12s %12s %14s%n", "routine/line", "count", "self ms", "total ms", "allocated B");
+        for (Entry entry : entries) {
+            out.printf("%-32s %12d %12.3f %12.3f %14d%n", entry.name, entry.count,
+                    entry.self / 1e6, entry.total / 1e6, entry.allocated);
+        }
+    }
+
+    // The visitors find the first token of a statement to get its line.
+
+    @Override
+    public Token visitArrayStmt(Stmt.Array stmt) {
+        return stmt.name;
+    }
+
+    @Override
+    public Token visitBodyStmt(Stmt.Body stmt) {
+        return stmt.statements.isEmpty() ? null : stmt.statements.get(0).accept(this);
+    }
+
+    @Override
+    public Token visitExpressionStmt(Stmt.Expression stmt) {
+        return stmt.expression.accept(this);
+    }
+
+    @Override
+    public Token visitRoutineStmt(Stmt.Routine stmt) {
+        return stmt.name;
+    }
+
+    @Override
+    public Token visitRangeStmt(Stmt.Range stmt) {
+        return stmt.from.accept(this);
+    }
+
+    @Override
+    public Token visitForStmt(Stmt.For stmt) {
+        return stmt.name;
+    }
+
+    @Override
+    public Token visitIfStmt(Stmt.If stmt) {
+        return stmt.condition.accept(this);
+    }
+
+    @Override
+    public Token visitPrintStmt(Stmt.Print stmt) {
+        return stmt.expression.accept(this);
+    }
+
+    @Override
+    public Token visitRecordStmt(Stmt.Record stmt) {
+        return stmt.name;
+    }
+
+    @Override
+    public Token visitReturnStmt(Stmt.Return stmt) {
+        return stmt.keyword;
+    }
+
+    @Override
+    public Token visitTypeDeclareStmt(Stmt.TypeDeclare stmt) {
+        return stmt.name;
+    }
+
+    @Override
+    public Token visitVarStmt(Stmt.Var stmt) {
+        return stmt.name;
+    }
+
+    @Override
+    public Token visitWhileStmt(Stmt.While stmt) {
+        return stmt.condition.accept(this);
+    }
+
+    @Override
+    public Token visitAssignExpr(Expr.Assign expr) {
+        return expr.name;
+    }
+
+    @Override
+    public Token visitBinaryExpr(Expr.Binary expr) {
+        Token token = expr.left.accept(this);
+        return token != null ? token : expr.operator;
+    }
+
+    @Override
+    public Token visitCallExpr(Expr.Call expr) {
+        Token token = expr.callee.accept(this);
+        return token != null ? token : expr.paren;
+    }
+
+    @Override
+    public Token visitGetExpr(Expr.Get expr) {
+        Token token = expr.record.accept(this);
+        return token != null ? token : expr.name;
+    }
+
+    @Override
+    public Token visitGetIndexExpr(Expr.GetIndex expr) {
+        return expr.array.accept(this);
+    }
+
+    @Override
+    public Token visitGroupingExpr(Expr.Grouping expr) {
+        return expr.expression.accept(this);
+    }
+
+    @Override
+    public Token visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Token visitLogicalExpr(Expr.Logical expr) {
+        Token token = expr.left.accept(this);
+        return token != null ? token : expr.operator;
+    }
+
+    @Override
+    public Token visitUnaryExpr(Expr.Unary expr) {
+        return expr.operator;
+    }
+
+    @Override
+    public Token visitVariableExpr(Expr.Variable expr) {
+        return expr.name;
+    }
+}
@@ -0,0 +1,490 @@
+package com.imperative;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Emits random but valid programs for stress tests and benchmarks. The
+ * same seed and shape always produce the same program.
+ *
+ * Generated programs stick to what the Evaluator can run: every name is
+ * declared once, loops have small constant trip counts, divisors are
+ * non-zero literals, every 'if' has an 'else', and a routine calls at
+ * most one routine declared before it, with the call chain depth capped.
+ * Running a generated program therefore terminates and costs time in
+ * proportion to its size.
+ */
+class ProgramGenerator {
+    private static final int MAX_CALL_DEPTH = 3;
+    private static final int MAX_TRIPS = 4;
+    // how many recent declarations of each kind later code may refer to
+    private static final int WINDOW = 32;
+
+    /**
+     * What a module of the program looks like. A program is a sequence of
+     * modules, each declaring the given numbers of type aliases, records,
+     * arrays and routines; every routine is followed by a top-level call.
+     */
+    static class Shape {
+        int types = 1;
+        int records = 2;
+        int arrays = 2;
+        int routines = 8;
+        // deepest nesting of loops and ifs inside a routine
+        int depth = 3;
+        // operands per expression
+        int width = 4;
+        // statements per block
+        int statements = 5;
+        // relative weights of statement kinds within a block
+        int forWeight = 2;
+        int whileWeight = 1;
+        int ifWeight = 2;
+        int assignWeight = 5;
+    }
+
+    private static class Routine {
+        final String name;
+        final int arity;
+        final int callDepth;
+
+        Routine(String name, int arity, int callDepth) {
+            this.name = name;
+            this.arity = arity;
+            this.callDepth = callDepth;
+        }
+    }
+
+    private final Random random;
+    private final Shape shape;
+    private final List<String> types = new ArrayList<>();
+    private final List<String> fields = new ArrayList<>();
+    private final List<String> elements = new ArrayList<>();
+    private final List<Routine> routines = new ArrayList<>();
+    private int names = 0;
+
+    // state of the routine being generated
+    private final List<List<String>> integers = new ArrayList<>();
+    private final List<List<String>> reals = new ArrayList<>();
+    private final List<List<String>> assignable = new ArrayList<>();
+    private Routine callee;
+
+    ProgramGenerator(long seed, Shape shape) {
+        this.random = new Random(seed);
+        this.shape = shape;
+    }
+
+    String generate(int targetBytes) {
+        StringBuilder builder = new StringBuilder(targetBytes + 4096);
+        try {
+            generate(builder, targetBytes);
+        } catch (IOException error) {
+            throw new UncheckedIOException(error);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Appends declarations until at least {@code targetBytes} have been
+     * written and returns the number written.
+     */
+    long generate(Appendable out, long targetBytes) throws IOException {
+        long written = 0;
+        StringBuilder unit = new StringBuilder();
+        while (written < targetBytes) {
+            for (int i = 0; i < shape.types && written < targetBytes; i++) {
+                typeDeclaration(unit);
+                written += flush(unit, out);
+            }
+            for (int i = 0; i < shape.records && written < targetBytes; i++) {
+                recordDeclaration(unit);
+                written += flush(unit, out);
+            }
+            for (int i = 0; i < shape.arrays && written < targetBytes; i++) {
+                arrayDeclaration(unit);
+                written += flush(unit, out);
+            }
+            for (int i = 0; i < shape.routines && written < targetBytes; i++) {
+                routineDeclaration(unit);
+                written += flush(unit, out);
+            }
+        }
+        return written;
+    }
+
+    private static int flush(StringBuilder unit, Appendable out) throws IOException {
+        int length = unit.length();
+        out.append(unit);
+        unit.setLength(0);
+        return length;
+    }
+
+    private void typeDeclaration(StringBuilder out) {
+        String name = name("t");
+        out.append("type ").append(name).append(" is integer;\n");
+        remember(types, name);
+    }
+
+    private void recordDeclaration(StringBuilder out) {
+        String name = name("R");
+        out.append("record ").append(name).append('\n');
+        int count = 1 + random.nextInt(4);
+        for (int i = 0; i < count; i++) {
+            String field = "f" + i;
+            out.append("    var ").append(field).append(" is ").append(literal()).append(";\n");
+            remember(fields, name + "." + field);
+        }
+        out.append("end\n");
+    }
+
+    private void arrayDeclaration(StringBuilder out) {
+        String name = name("A");
+        out.append("array ").append(name).append(" [");
+        int count = 1 + random.nextInt(8);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) out.append(", ");
+            out.append(literal());
+            remember(elements, name + "[" + (i + 1) + "]");
+        }
+        out.append("];\n");
+    }
+
+    private void routineDeclaration(StringBuilder out) {
+        String name = name("r");
+        int arity = random.nextInt(4);
+
+        callee = null;
+        List<Routine> candidates = new ArrayList<>();
+        for (Routine routine : routines) {
+            if (routine.callDepth < MAX_CALL_DEPTH) candidates.add(routine);
+        }
+        if (!candidates.isEmpty() && random.nextInt(3) > 0) {
+            callee = candidates.get(random.nextInt(candidates.size()));
+        }
+        Routine routine = new Routine(name, arity, callee == null ? 0 : callee.callDepth + 1);
+
+        integers.clear();
+        reals.clear();
+        assignable.clear();
+        enterScope();
+
+        out.append("routine ").append(name).append('(');
+        for (int i = 0; i < arity; i++) {
+            String parameter = "p" + i;
+            if (i > 0) out.append(", ");
+            out.append(parameter).append(": ").append(integerType());
+            declareInteger(parameter);
+        }
+        out.append("): integer is\n");
+
+        block(out, 1);
+        out.append("    return ").append(integerExpression(shape.width)).append(";\n");
+        out.append("end\n");
+
+        // the call comes after the body so the routine cannot reach itself
+        remember(routines, routine);
+        out.append("print ").append(call(routine, true)).append(";\n");
+    }
+
+    private void block(StringBuilder out, int depth) {
+        int count = 1 + random.nextInt(shape.statements);
+        declaration(out, depth);
+        for (int i = 0; i < count; i++) {
+            statement(out, depth);
+        }
+    }
+
+    private void declaration(StringBuilder out, int depth) {
+        String name = name("v");
+        boolean real = random.nextInt(4) == 0;
+        indent(out, depth).append("var ").append(name);
+        if (real) {
+            out.append(" is ").append(realExpression(shape.width)).append(";\n");
+            reals.get(reals.size() - 1).add(name);
+        } else if (depth == 1 && callee != null) {
+            // at most one call per routine, and never inside a loop
+            out.append(" is ").append(call(callee, false)).append(";\n");
+            callee = null;
+            declareInteger(name);
+        } else {
+            out.append(" is ").append(integerExpression(shape.width)).append(";\n");
+            declareInteger(name);
+        }
+        assignable.get(assignable.size() - 1).add(name);
+    }
+
+    private void statement(StringBuilder out, int depth) {
+        int nested = depth <= shape.depth
+                ? shape.forWeight + shape.whileWeight + shape.ifWeight : 0;
+        int pick = random.nextInt(nested + shape.assignWeight + 1);
+
+        if (pick < shape.forWeight && nested > 0) {
+            forStatement(out, depth);
+        } else if (pick < shape.forWeight + shape.whileWeight && nested > 0) {
+            whileStatement(out, depth);
+        } else if (pick < nested) {
+            ifStatement(out, depth);
+        } else if (pick < nested + shape.assignWeight) {
+            assignment(out, depth);
+        } else {
+            declaration(out, depth);
+        }
+    }
+
+    private void forStatement(StringBuilder out, int depth) {
+        String name = name("i");
+        int trips = 1 + random.nextInt(MAX_TRIPS);
+        indent(out, depth).append("for ").append(name).append(" in ");
+        if (random.nextBoolean()) {
+            out.append(0).append("..").append(trips);
+        } else {
+            out.append("reverse ").append(trips).append("..").append(0);
+        }
+        out.append(" loop\n");
+
+        enterScope();
+        declareInteger(name);
+        block(out, depth + 1);
+        exitScope();
+        indent(out, depth).append("end\n");
+    }
+
+    private void whileStatement(StringBuilder out, int depth) {
+        String name = name("w");
+        int trips = 1 + random.nextInt(MAX_TRIPS);
+        indent(out, depth).append("var ").append(name).append(" is 0;\n");
+        declareInteger(name);
+        indent(out, depth).append("while ").append(name).append(" < ").append(trips).append(" loop\n");
+
+        enterScope();
+        block(out, depth + 1);
+        exitScope();
+        indent(out, depth + 1).append(name).append(" := ").append(name).append(" + 1;\n");
+        indent(out, depth).append("end\n");
+    }
+
+    private void ifStatement(StringBuilder out, int depth) {
+        indent(out, depth).append("if ").append(condition()).append(" then loop\n");
+        enterScope();
+        block(out, depth + 1);
+        exitScope();
+        indent(out, depth).append("end else loop\n");
+        enterScope();
+        block(out, depth + 1);
+        exitScope();
+        indent(out, depth).append("end end\n");
+    }
+
+    private void assignment(StringBuilder out, int depth) {
+        List<String> targets = new ArrayList<>();
+        for (List<String> scope : assignable) {
+            targets.addAll(scope);
+        }
+        if (targets.isEmpty()) {
+            declaration(out, depth);
+            return;
+        }
+
+        String target = targets.get(random.nextInt(targets.size()));
+        indent(out, depth).append(target).append(" := ");
+        if (isReal(target)) {
+            out.append(realExpression(shape.width));
+        } else {
+            out.append(integerExpression(shape.width));
+        }
+        out.append(";\n");
+    }
+
+    private String condition() {
+        String[] comparisons = {"<", "<=", ">", ">=", "==", "/="};
+        StringBuilder builder = new StringBuilder();
+        builder.append(integerExpression(2)).append(' ')
+                .append(comparisons[random.nextInt(comparisons.length)]).append(' ')
+                .append(integerExpression(2));
+        if (random.nextInt(4) == 0) {
+            builder.append(random.nextBoolean() ? " and " : " or ")
+                    .append(integerOperand()).append(" < ").append(literal());
+        }
+        return builder.toString();
+    }
+
+    private String integerExpression(int width) {
+        StringBuilder builder = new StringBuilder();
+        int operands = 1 + random.nextInt(Math.max(1, width));
+        for (int i = 0; i < operands; i++) {
+            if (i > 0) {
+                switch (random.nextInt(4)) {
+                    case 0:
+                        builder.append(" + ");
+                        break;
+                    case 1:
+                        builder.append(" - ");
+                        break;
+                    case 2:
+                        builder.append(" * ");
+                        break;
+                    default:
+                        builder.append(" / ").append(1 + random.nextInt(9)).append(" + ");
+                }
+            }
+
+            if (width > 2 && random.nextInt(6) == 0) {
+                builder.append('(').append(integerExpression(width / 2)).append(')');
+            } else {
+                builder.append(integerOperand());
+            }
+        }
+        return builder.toString();
+    }
+
+    private String integerOperand() {
+        List<String> variables = new ArrayList<>();
+        for (List<String> scope : integers) {
+            variables.addAll(scope);
+        }
+
+        int pick = random.nextInt(10);
+        if (pick < 5 && !variables.isEmpty()) {
+            return variables.get(random.nextInt(variables.size()));
+        } else if (pick < 6 && !fields.isEmpty()) {
+            return fields.get(random.nextInt(fields.size()));
+        } else if (pick < 7 && !elements.isEmpty()) {
+            return elements.get(random.nextInt(elements.size()));
+        }
+        return literal();
+    }
+
+    private String realExpression(int width) {
+        List<String> variables = new ArrayList<>();
+        for (List<String> scope : reals) {
+            variables.addAll(scope);
+        }
+
+        StringBuilder builder = new StringBuilder();
+        int operands = 1 + random.nextInt(Math.max(1, width));
+        for (int i = 0; i < operands; i++) {
+            if (i > 0) {
+                builder.append(random.nextBoolean() ? " + " : " * 0.5 - ");
+            }
+
+            int pick = random.nextInt(3);
+            if (pick == 0 && !variables.isEmpty()) {
+                builder.append(variables.get(random.nextInt(variables.size())));
+            } else if (pick == 1) {
+                builder.append(integerOperand());
+            } else {
+                builder.append(random.nextInt(100)).append('.').append(random.nextInt(100));
+            }
+        }
+        return builder.toString();
+    }
+
+    private String call(Routine routine, boolean literals) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(routine.name).append('(');
+        for (int i = 0; i < routine.arity; i++) {
+            if (i > 0) builder.append(", ");
+            builder.append(literals ? literal() : integerExpression(2));
+        }
+        return builder.append(')').toString();
+    }
+
+    private String integerType() {
+        if (types.isEmpty() || random.nextBoolean()) return "integer";
+        return types.get(random.nextInt(types.size()));
+    }
+
+    private String literal() {
+        return Integer.toString(random.nextInt(10));
+    }
+
+    private String name(String prefix) {
+        return prefix + names++;
+    }
+
+    private void enterScope() {
+        integers.add(new ArrayList<>());
+        reals.add(new ArrayList<>());
+        assignable.add(new ArrayList<>());
+    }
+
+    private void exitScope() {
+        integers.remove(integers.size() - 1);
+        reals.remove(reals.size() - 1);
+        assignable.remove(assignable.size() - 1);
+    }
+
+    private void declareInteger(String name) {
+        integers.get(integers.size() - 1).add(name);
+    }
+
+    private boolean isReal(String name) {
+        for (List<String> scope : reals) {
+            if (scope.contains(name)) return true;
+        }
+        return false;
+    }
+
+    private StringBuilder indent(StringBuilder out, int depth) {
+        for (int i = 0; i < depth; i++) {
+            out.append("    ");
+        }
+        return out;
+    }
+
+    private static <T> void remember(List<T> recent, T item) {
+        if (recent.size() == WINDOW) recent.remove(0);
+        recent.add(item);
+    }
+
+    /**
+     * Writes a generated program to standard output, for example
+     * {@code ProgramGenerator --seed 7 --size 1073741824 > big.imp}.
+     */
+    public static void main(String[] args) throws IOException {
+        long seed = 1;
+        long size = 1 << 20;
+        Shape shape = new Shape();
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            long value = Long.parseLong(args[i + 1]);
+            switch (args[i]) {
+                case "--seed":
+                    seed = value;
+                    break;
+                case "--size":
+                    size = value;
+                    break;
+                case "--routines":
+                    shape.routines = (int) value;
+                    break;
+                case "--records":
+                    shape.records = (int) value;
+                    break;
+                case "--arrays":
+                    shape.arrays = (int) value;
+                    break;
+                case "--depth":
+                    shape.depth = (int) value;
+                    break;
+                case "--width":
+                    shape.width = (int) value;
+                    break;
+                default:
+                    System.out.println("Usage: ProgramGenerator [--seed n] [--size bytes] [--routines n]"
+                            + " [--records n] [--arrays n] [--depth n] [--width n]");
+                    System.exit(69);
+            }
+        }
+
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+        new ProgramGenerator(seed, shape).generate(out, size);
+        out.flush();
+    }
+}
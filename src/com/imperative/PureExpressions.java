@@ -0,0 +1,153 @@
+package com.imperative;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Facts about expressions that have no side effects, which passes may
+ * evaluate once instead of several times, or not at all. They can still
+ * fail, since the operators throw on operands of the wrong type, so a
+ * pass only evaluates one early where the program would have evaluated
+ * it anyway. Structurally equal pure expressions share a key.
+ */
+final class PureExpressions {
+    private PureExpressions() {
+    }
+
+    /**
+     * A key equal for structurally equal expressions, or null when the
+     * expression is not pure: calls, assignments and array reads are not,
+     * and neither is a division that may be by zero.
+     */
+    static String key(Expr expr) {
+        if (expr instanceof Expr.Literal) {
+            Object value = ((Expr.Literal) expr).value;
+            if (value instanceof String) return "\"" + ((String) value).replace("\"", "\\\"") + "\"";
+            return value == null ? "null" : value.getClass().getSimpleName() + ":" + value;
+        }
+        if (expr instanceof Expr.Variable) {
+            return ((Expr.Variable) expr).name.lexeme;
+        }
+        if (expr instanceof Expr.Grouping) {
+            return key(((Expr.Grouping) expr).expression);
+        }
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            String right = key(unary.right);
+            return right == null ? null : "(" + unary.operator.lexeme + " " + right + ")";
+        }
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            if (binary.operator.type == TokenType.SLASH && !isNonZeroLiteral(binary.right)) return null;
+            return pair(binary.operator, binary.left, binary.right);
+        }
+        if (expr instanceof Expr.Logical) {
+            Expr.Logical logical = (Expr.Logical) expr;
+            return pair(logical.operator, logical.left, logical.right);
+        }
+        if (expr instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get) expr;
+            String record = key(get.record);
+            return record == null ? null : "(. " + record + " " + get.name.lexeme + ")";
+        }
+
+        return null;
+    }
+
+    private static String pair(Token operator, Expr left, Expr right) {
+        String l = key(left);
+        if (l == null) return null;
+        String r = key(right);
+        if (r == null) return null;
+        return "(" + operator.lexeme + " " + l + " " + r + ")";
+    }
+
+    private static boolean isNonZeroLiteral(Expr expr) {
+        while (expr instanceof Expr.Grouping) expr = ((Expr.Grouping) expr).expression;
+        if (!(expr instanceof Expr.Literal)) return false;
+        Object value = ((Expr.Literal) expr).value;
+        return value instanceof Number && ((Number) value).doubleValue() != 0;
+    }
+
+    /**
+     * Whether the expression is only a name or a constant, which is as
+     * cheap to evaluate as a temporary holding it.
+     */
+    static boolean isTrivial(Expr expr) {
+        while (expr instanceof Expr.Grouping) expr = ((Expr.Grouping) expr).expression;
+        return expr instanceof Expr.Literal || expr instanceof Expr.Variable;
+    }
+
+    static Set<Symbol> reads(Expr expr) {
+        Set<Symbol> names = new HashSet<>();
+        new Walker() {
+            @Override
+            public Void visitVariableExpr(Expr.Variable variable) {
+                names.add(variable.name.symbol);
+                return null;
+            }
+        }.walk(expr);
+        return names;
+    }
+
+    /**
+     * The line of the first token in the expression, for naming the
+     * temporary that replaces it.
+     */
+    static int line(Expr expr) {
+        if (expr instanceof Expr.Variable) return ((Expr.Variable) expr).name.line;
+        if (expr instanceof Expr.Grouping) return line(((Expr.Grouping) expr).expression);
+        if (expr instanceof Expr.Unary) return ((Expr.Unary) expr).operator.line;
+        if (expr instanceof Expr.Binary) return line(((Expr.Binary) expr).left);
+        if (expr instanceof Expr.Logical) return line(((Expr.Logical) expr).left);
+        if (expr instanceof Expr.Get) return ((Expr.Get) expr).name.line;
+        return 0;
+    }
+
+    /**
+     * The names a routine declares for itself: its parameters and every
+     * declaration in its body. All other names are globals.
+     */
+    static Set<Symbol> locals(List<Token> params, List<Stmt> body) {
+        Set<Symbol> names = new HashSet<>();
+        for (Token param : params) {
+            names.add(param.symbol);
+        }
+        new Walker() {
+            @Override
+            public Void visitArrayStmt(Stmt.Array stmt) {
+                names.add(stmt.name.symbol);
+                return super.visitArrayStmt(stmt);
+            }
+
+            @Override
+            public Void visitForStmt(Stmt.For stmt) {
+                names.add(stmt.name.symbol);
+                return super.visitForStmt(stmt);
+            }
+
+            @Override
+            public Void visitRecordStmt(Stmt.Record stmt) {
+                names.add(stmt.name.symbol);
+                for (Stmt.Var field : stmt.fields) {
+                    walk(field.initializer);
+                }
+                return null;
+            }
+
+            @Override
+            public Void visitRoutineStmt(Stmt.Routine stmt) {
+                names.add(stmt.name.symbol);
+                return null;
+            }
+
+            @Override
+            public Void visitVarStmt(Stmt.Var stmt) {
+                names.add(stmt.name.symbol);
+                return super.visitVarStmt(stmt);
+            }
+        }.block(body);
+        return names;
+    }
+}
@@ -0,0 +1,120 @@
+package com.imperative;
+
+import java.util.AbstractList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An array whose members are all records of one kind, the same name and
+ * fields, stored a column per field instead of a record per member: an
+ * int[], double[] or boolean[] when every member holds that kind of value
+ * in the field, an Object[] otherwise. Reading a field of a member reads
+ * its column; a member read whole is put back together as a record, which
+ * equals the one it was made from since records cannot change.
+ */
+final class RecordArray extends AbstractList<Expr> {
+    private final String name;
+    private final Symbol[] fields;
+    private final Object[] columns;
+    private final int size;
+
+    private RecordArray(String name, Symbol[] fields, Object[] columns, int size) {
+        this.name = name;
+        this.fields = fields;
+        this.columns = columns;
+        this.size = size;
+    }
+
+    /**
+     * The values stored by column, or null unless they are all records
+     * of one kind.
+     */
+    static RecordArray of(Object[] values) {
+        if (values.length == 0 || !(values[0] instanceof IRecord)) return null;
+        IRecord first = (IRecord) values[0];
+        Set<Symbol> names = first.fields().keySet();
+        for (Object value : values) {
+            if (!(value instanceof IRecord)) return null;
+            IRecord record = (IRecord) value;
+            if (!record.name().equals(first.name()) || !record.fields().keySet().equals(names)) return null;
+        }
+
+        Symbol[] fields = names.toArray(new Symbol[0]);
+        Object[] columns = new Object[fields.length];
+        for (int field = 0; field < fields.length; field++) {
+            columns[field] = column(values, fields[field]);
+        }
+        return new RecordArray(first.name(), fields, columns, values.length);
+    }
+
+    private static Object column(Object[] values, Symbol field) {
+        boolean ints = true;
+        boolean doubles = true;
+        boolean booleans = true;
+        for (Object record : values) {
+            Object value = ((IRecord) record).fields().get(field);
+            ints &= value instanceof Integer;
+            doubles &= value instanceof Double;
+            booleans &= value instanceof Boolean;
+        }
+
+        if (ints) {
+            int[] column = new int[values.length];
+            for (int i = 0; i < values.length; i++) {
+                column[i] = (int) ((IRecord) values[i]).fields().get(field);
+            }
+            return column;
+        }
+        if (doubles) {
+            double[] column = new double[values.length];
+            for (int i = 0; i < values.length; i++) {
+                column[i] = (double) ((IRecord) values[i]).fields().get(field);
+            }
+            return column;
+        }
+        if (booleans) {
+            boolean[] column = new boolean[values.length];
+            for (int i = 0; i < values.length; i++) {
+                column[i] = (boolean) ((IRecord) values[i]).fields().get(field);
+            }
+            return column;
+        }
+        Object[] column = new Object[values.length];
+        for (int i = 0; i < values.length; i++) {
+            column[i] = ((IRecord) values[i]).fields().get(field);
+        }
+        return column;
+    }
+
+    /**
+     * The field of a member, read from its column.
+     */
+    Object get(int index, Token field) {
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i] == field.symbol) return value(columns[i], index);
+        }
+        throw new RuntimeError(field, "Undefined property '" + field.lexeme + "'.");
+    }
+
+    private static Object value(Object column, int index) {
+        if (column instanceof int[]) return ((int[]) column)[index];
+        if (column instanceof double[]) return ((double[]) column)[index];
+        if (column instanceof boolean[]) return ((boolean[]) column)[index];
+        return ((Object[]) column)[index];
+    }
+
+    @Override
+    public Expr get(int index) {
+        Map<Symbol, Object> values = new HashMap<>();
+        for (int i = 0; i < fields.length; i++) {
+            values.put(fields[i], value(columns[i], index));
+        }
+        return new Expr.Literal(new IRecord(name, values), new Type.RecordType(name));
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+}
@@ -1,9 +1,62 @@
 package com.imperative;
 
-import java.util.List;
-
+/**
+ * Something a call expression can call. Calls with up to four arguments
+ * go through the entry point for their count, so the caller never has to
+ * collect the arguments; more take the array.
+ */
 interface RoutineCallable {
     int arity();
 
-    Object call(Evaluator evaluator, List<Object> arguments);
+    /**
+     * Whether a call may pass this many arguments; only library routines
+     * take some optionally.
+     */
+    default boolean accepts(int arguments) {
+        return arguments == arity();
+    }
+
+    /**
+     * Calls with the arguments in an array the callee may keep.
+     */
+    Object call(Evaluator evaluator, Object[] arguments);
+
+    default Object call0(Evaluator evaluator) {
+        return call(evaluator, new Object[0]);
+    }
+
+    default Object call1(Evaluator evaluator, Object a) {
+        return call(evaluator, new Object[]{a});
+    }
+
+    default Object call2(Evaluator evaluator, Object a, Object b) {
+        return call(evaluator, new Object[]{a, b});
+    }
+
+    default Object call3(Evaluator evaluator, Object a, Object b, Object c) {
+        return call(evaluator, new Object[]{a, b, c});
+    }
+
+    default Object call4(Evaluator evaluator, Object a, Object b, Object c, Object d) {
+        return call(evaluator, new Object[]{a, b, c, d});
+    }
+
+    /**
+     * The callee of a call passing the given number of arguments, once
+     * its arguments have been evaluated, after checking it can be called
+     * with that many.
+     */
+    static RoutineCallable check(Object callee, int arguments, Token paren) {
+        if (!(callee instanceof RoutineCallable)) {
+            throw new RuntimeError(paren, "Can only call functions.");
+        }
+
+        RoutineCallable function = (RoutineCallable) callee;
+        if (!function.accepts(arguments)) {
+            throw new RuntimeError(paren, "Expected " +
+                    function.arity() + " arguments but got " +
+                    arguments + ".");
+        }
+        return function;
+    }
 }
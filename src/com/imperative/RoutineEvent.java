@@ -0,0 +1,21 @@
+package com.imperative;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("com.imperative.Routine")
+@Label("Routine Call")
+@Category({"Imperative", "Execution"})
+@Description("A call to a script routine, from entry to exit")
+@StackTrace(false)
+class RoutineEvent extends Event {
+    @Label("Routine")
+    String name;
+
+    @Label("Arguments")
+    int arguments;
+}
@@ -0,0 +1,19 @@
+package com.imperative;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("com.imperative.RuntimeError")
+@Label("Runtime Error")
+@Category({"Imperative", "Execution"})
+@Description("A runtime error that stopped a script")
+class RuntimeErrorEvent extends Event {
+    @Label("Message")
+    String message;
+
+    @Label("Line")
+    int line;
+}
@@ -0,0 +1,205 @@
+package com.imperative;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Escape analysis for records declared inside a routine. A record whose
+ * name is only ever used to read its own fields, after its declaration
+ * and in the same block, cannot be returned, stored, passed on or called,
+ * so its fields become plain variables named "record.field" and no
+ * IRecord or field map is allocated for it. Records declared under a name
+ * the routine uses for anything else are left alone, as are reads from
+ * inside array members, which are evaluated wherever the array is read.
+ */
+class ScalarReplacement extends AstRewriter {
+    // the variable standing in for each field of each replaced record
+    private final Map<Symbol, Map<Symbol, Token>> replaced = new HashMap<>();
+    private final Set<Stmt.Record> records = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    static List<Stmt> apply(List<Token> params, List<Stmt> body) {
+        Map<Symbol, Integer> declarations = new HashMap<>();
+        for (Token param : params) {
+            declarations.merge(param.symbol, 1, Integer::sum);
+        }
+
+        Declarations scan = new Declarations(declarations);
+        scan.block(body);
+
+        ScalarReplacement pass = new ScalarReplacement();
+        for (Declarations.Site site : scan.records) {
+            Stmt.Record record = site.record;
+            if (declarations.get(record.name.symbol) != 1) continue;
+
+            Map<Symbol, Token> fields = new HashMap<>();
+            for (Stmt.Var field : record.fields) {
+                fields.put(field.name.symbol, new Token(TokenType.IDENTIFIER,
+                        record.name.lexeme + "." + field.name.lexeme, null, field.name.line));
+            }
+            if (fields.size() != record.fields.size()) continue;
+
+            References everywhere = new References(record.name.symbol, fields.keySet());
+            everywhere.block(body);
+            References after = new References(record.name.symbol, fields.keySet());
+            after.block(site.block.subList(site.index + 1, site.block.size()));
+            if (everywhere.all != after.fieldReads) continue;
+
+            pass.replaced.put(record.name.symbol, fields);
+            pass.records.add(record);
+        }
+
+        return pass.records.isEmpty() ? body : pass.rewrite(body);
+    }
+
+    @Override
+    void rewriteInto(Stmt statement, List<Stmt> block) {
+        if (!(statement instanceof Stmt.Record) || !records.contains(statement)) {
+            super.rewriteInto(statement, block);
+            return;
+        }
+
+        Stmt.Record record = (Stmt.Record) statement;
+        Map<Symbol, Token> fields = replaced.get(record.name.symbol);
+        for (Stmt.Var field : record.fields) {
+            block.add(new Stmt.Var(fields.get(field.name.symbol), rewrite(field.initializer), field.type));
+        }
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+        if (expr.record instanceof Expr.Variable) {
+            Map<Symbol, Token> fields = replaced.get(((Expr.Variable) expr.record).name.symbol);
+            if (fields != null) return new Expr.Variable(fields.get(expr.name.symbol));
+        }
+
+        return super.visitGetExpr(expr);
+    }
+
+    /**
+     * Counts how often each name is declared in the routine and finds the
+     * records with the block and position they are declared at.
+     */
+    private static class Declarations extends Walker {
+        static class Site {
+            final Stmt.Record record;
+            final List<Stmt> block;
+            final int index;
+
+            Site(Stmt.Record record, List<Stmt> block, int index) {
+                this.record = record;
+                this.block = block;
+                this.index = index;
+            }
+        }
+
+        final Map<Symbol, Integer> declarations;
+        final List<Site> records = new ArrayList<>();
+
+        Declarations(Map<Symbol, Integer> declarations) {
+            this.declarations = declarations;
+        }
+
+        @Override
+        void block(List<Stmt> statements) {
+            for (int i = 0; i < statements.size(); i++) {
+                Stmt statement = statements.get(i);
+                if (statement instanceof Stmt.Record) {
+                    records.add(new Site((Stmt.Record) statement, statements, i));
+                }
+                walk(statement);
+            }
+        }
+
+        private void declare(Token name) {
+            declarations.merge(name.symbol, 1, Integer::sum);
+        }
+
+        @Override
+        public Void visitArrayStmt(Stmt.Array stmt) {
+            declare(stmt.name);
+            return super.visitArrayStmt(stmt);
+        }
+
+        @Override
+        public Void visitRoutineStmt(Stmt.Routine stmt) {
+            declare(stmt.name);
+            return null;
+        }
+
+        @Override
+        public Void visitForStmt(Stmt.For stmt) {
+            declare(stmt.name);
+            return super.visitForStmt(stmt);
+        }
+
+        @Override
+        public Void visitRecordStmt(Stmt.Record stmt) {
+            declare(stmt.name);
+            // fields are not variables of the routine, only their initializers matter
+            for (Stmt.Var field : stmt.fields) {
+                walk(field.initializer);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            declare(stmt.name);
+            return super.visitVarStmt(stmt);
+        }
+    }
+
+    /**
+     * Counts the references to one record name, and separately those that
+     * read one of its fields directly.
+     */
+    private static class References extends Walker {
+        final Symbol name;
+        final Set<Symbol> fields;
+        int all = 0;
+        int fieldReads = 0;
+        private int arrays = 0;
+
+        References(Symbol name, Set<Symbol> fields) {
+            this.name = name;
+            this.fields = fields;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            if (expr.name.symbol == name) all++;
+            return super.visitAssignExpr(expr);
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            if (arrays == 0 && expr.record instanceof Expr.Variable
+                    && ((Expr.Variable) expr.record).name.symbol == name
+                    && fields.contains(expr.name.symbol)) {
+                fieldReads++;
+            }
+            return super.visitGetExpr(expr);
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            if (expr.name.symbol == name) all++;
+            return null;
+        }
+
+        @Override
+        public Void visitArrayStmt(Stmt.Array stmt) {
+            arrays++;
+            try {
+                return super.visitArrayStmt(stmt);
+            } finally {
+                arrays--;
+            }
+        }
+    }
+}
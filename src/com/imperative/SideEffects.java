@@ -0,0 +1,97 @@
+package com.imperative;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * What a piece of code may change: the names it assigns or declares, and
+ * whether it calls anything. A callee runs against the globals only, so
+ * a call can change any global but none of the caller's locals.
+ */
+class SideEffects extends Walker {
+    final Set<Symbol> written = new HashSet<>();
+    boolean calls = false;
+    // an assignment somewhere other than at the root of an expression statement
+    boolean nestedAssignment = false;
+
+    static SideEffects of(Stmt statement) {
+        SideEffects effects = new SideEffects();
+        effects.walk(statement);
+        return effects;
+    }
+
+    /**
+     * Whether an expression reading these names gives the same value
+     * before and after this code ran.
+     */
+    boolean preserves(Set<Symbol> reads, Set<Symbol> locals) {
+        for (Symbol name : reads) {
+            if (written.contains(name)) return false;
+            if (calls && !locals.contains(name)) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        written.add(expr.name.symbol);
+        nestedAssignment = true;
+        return super.visitAssignExpr(expr);
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        calls = true;
+        return super.visitCallExpr(expr);
+    }
+
+    @Override
+    public Void visitGetIndexExpr(Expr.GetIndex expr) {
+        // array members are evaluated on access and may call anything
+        calls = true;
+        return super.visitGetIndexExpr(expr);
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        if (stmt.expression instanceof Expr.Assign) {
+            written.add(((Expr.Assign) stmt.expression).name.symbol);
+            walk(((Expr.Assign) stmt.expression).value);
+            return null;
+        }
+        return super.visitExpressionStmt(stmt);
+    }
+
+    @Override
+    public Void visitArrayStmt(Stmt.Array stmt) {
+        written.add(stmt.name.symbol);
+        return super.visitArrayStmt(stmt);
+    }
+
+    @Override
+    public Void visitRoutineStmt(Stmt.Routine stmt) {
+        written.add(stmt.name.symbol);
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        written.add(stmt.name.symbol);
+        return super.visitForStmt(stmt);
+    }
+
+    @Override
+    public Void visitRecordStmt(Stmt.Record stmt) {
+        written.add(stmt.name.symbol);
+        for (Stmt.Var field : stmt.fields) {
+            walk(field.initializer);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        written.add(stmt.name.symbol);
+        return super.visitVarStmt(stmt);
+    }
+}
@@ -0,0 +1,96 @@
+package com.imperative;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Tidies the control flow graph: drops blocks nothing reaches, turns a
+ * branch whose targets agree into a jump, and merges a block into its
+ * only predecessor when that predecessor jumps nowhere else.
+ */
+class SimplifyCfg implements IrPass {
+    @Override
+    public String name() {
+        return "cfg";
+    }
+
+    @Override
+    public boolean run(Ir.Function function) {
+        boolean changed = removeUnreachable(function, reachable(function));
+
+        for (Ir.Block block : function.blocks) {
+            if (!(block.terminator instanceof Ir.Branch)) continue;
+            Ir.Branch branch = (Ir.Branch) block.terminator;
+            if (branch.then != branch.otherwise) continue;
+
+            branch.then.removePredecessor(block);
+            block.terminator = new Ir.Jump(branch.then);
+            changed = true;
+        }
+
+        boolean merged;
+        do {
+            merged = false;
+            for (Ir.Block block : function.blocks) {
+                if (block != function.entry() && block.predecessors.size() == 1
+                        && block.predecessors.get(0).terminator instanceof Ir.Jump
+                        && block.predecessors.get(0) != block) {
+                    merge(function, block.predecessors.get(0), block);
+                    merged = true;
+                    break;
+                }
+            }
+            changed |= merged;
+        } while (merged);
+        return changed;
+    }
+
+    private static void merge(Ir.Function function, Ir.Block predecessor, Ir.Block block) {
+        for (Ir.Phi phi : block.phis) {
+            function.replaceAllUses(phi, phi.operand(0));
+        }
+        for (Ir.Instruction instruction : block.instructions) {
+            instruction.block = predecessor;
+            predecessor.instructions.add(instruction);
+        }
+        predecessor.terminator = block.terminator;
+        for (Ir.Block successor : block.successors()) {
+            successor.predecessors.replaceAll(p -> p == block ? predecessor : p);
+        }
+        function.blocks.remove(block);
+    }
+
+    static Set<Ir.Block> reachable(Ir.Function function) {
+        Set<Ir.Block> reachable = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Ir.Block> work = new ArrayDeque<>();
+        work.add(function.entry());
+        while (!work.isEmpty()) {
+            Ir.Block block = work.remove();
+            if (reachable.add(block)) work.addAll(block.successors());
+        }
+        return reachable;
+    }
+
+    /**
+     * Removes the blocks not in the set, with the edges they had into the
+     * blocks that stay.
+     */
+    static boolean removeUnreachable(Ir.Function function, Set<Ir.Block> reachable) {
+        boolean changed = false;
+        for (Ir.Block block : function.blocks) {
+            if (reachable.contains(block)) continue;
+            for (Ir.Block successor : block.successors()) {
+                if (!reachable.contains(successor)) continue;
+                while (successor.predecessors.contains(block)) {
+                    successor.removePredecessor(block);
+                }
+            }
+            changed = true;
+        }
+        function.blocks.removeIf(block -> !reachable.contains(block));
+        return changed;
+    }
+}
@@ -0,0 +1,117 @@
+package com.imperative;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sends calls that pass constants to a routine to a clone of the routine
+ * specialized for those constants: lowered with the constants in place of
+ * the parameters and optimized, so branches on them are gone and what
+ * depends only on them is computed already. Clones are kept on the
+ * routine per pattern of constant arguments and shared by every caller
+ * passing the same constants. Like an inlined copy, a clone only runs
+ * while the name still holds the routine it was made from; otherwise the
+ * call goes through as usual.
+ */
+class Specializer implements IrPass {
+    // patterns of constant arguments one routine gets clones for
+    static final int CLONES = 8;
+
+    /**
+     * A routine lowered with some parameters fixed, compiled the first
+     * time a call to it is. Touched by the compiler thread only.
+     */
+    static class Clone {
+        final IRoutine routine;
+        // per parameter the constant it is fixed to, or null
+        final List<Object> constants;
+        final Ir.Function function;
+        IrCompiler.Executable executable;
+
+        Clone(IRoutine routine, List<Object> constants, Ir.Function function) {
+            this.routine = routine;
+            this.constants = constants;
+            this.function = function;
+        }
+    }
+
+    private final Map<Symbol, Inliner.Target> targets;
+    // the calls it leaves behind are already on their slow path
+    private final Inliner inliner;
+
+    Specializer(Map<Symbol, Inliner.Target> targets, Inliner inliner) {
+        this.targets = targets;
+        this.inliner = inliner;
+    }
+
+    @Override
+    public String name() {
+        return "specialize";
+    }
+
+    @Override
+    public boolean run(Ir.Function function) {
+        boolean changed = false;
+        for (Ir.Block block : function.blocks) {
+            for (int i = 0; i < block.instructions.size(); i++) {
+                if (!(block.instructions.get(i) instanceof Ir.Call)) continue;
+                Ir.Call call = (Ir.Call) block.instructions.get(i);
+                if (!(call.operand(0) instanceof Ir.LoadGlobal) || inliner.guarded(call)) continue;
+
+                Inliner.Target target = targets.get(((Ir.LoadGlobal) call.operand(0)).name.symbol);
+                if (target == null || target.declaration.params.size() != call.operands.size() - 1) continue;
+
+                List<Object> constants = constants(call);
+                if (constants == null) continue;
+                Clone clone = clone(target, constants);
+                if (clone == null) continue;
+
+                Ir.Specialized specialized = function.number(new Ir.Specialized(call.paren, clone, call.operands));
+                specialized.block = block;
+                specialized.type = call.type;
+                block.instructions.set(i, specialized);
+                function.replaceAllUses(call, specialized);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * The constant passed for each parameter, null for those given
+     * something else, or null when no argument is a constant.
+     */
+    private static List<Object> constants(Ir.Call call) {
+        List<Object> constants = new ArrayList<>();
+        boolean any = false;
+        for (Ir.Value argument : call.operands.subList(1, call.operands.size())) {
+            Object value = argument instanceof Ir.Constant ? ((Ir.Constant) argument).value : null;
+            // only numbers and booleans, a null constant stands for none
+            if (!(value instanceof Integer || value instanceof Double || value instanceof Boolean)) value = null;
+            constants.add(value);
+            any |= value != null;
+        }
+        return any ? constants : null;
+    }
+
+    private static Clone clone(Inliner.Target target, List<Object> constants) {
+        Map<List<Object>, Clone> clones = target.routine.clones();
+        if (clones.containsKey(constants)) return clones.get(constants);
+        if (clones.size() >= CLONES) return null;
+
+        Clone clone = null;
+        Ir.Function function = IrBuilder.build(target.declaration, target.body);
+        if (function != null) {
+            for (Ir.Parameter parameter : function.parameters) {
+                Object constant = constants.get(parameter.index);
+                if (constant != null) function.replaceAllUses(parameter, function.constant(constant));
+            }
+            function.parameters.removeIf(parameter -> constants.get(parameter.index) != null);
+            PassManager.standard(null, null).run(function);
+            clone = new Clone(target.routine, constants, function);
+        }
+        clones.put(constants, clone);
+        return clone;
+    }
+}
@@ -0,0 +1,254 @@
+package com.imperative;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cost summary of one run for --stats: wall time and allocated bytes per
+ * phase (lexing, parsing, each analysis pass, execution) plus token, node,
+ * routine call and environment depth counts, rendered as one JSON object.
+ * Every phase is also reported to JFR as a {@link PhaseEvent}. Allocation
+ * is summed over all live threads, so the pool threads of --parallel and
+ * the background compiler count too; a thread that ends inside a phase
+ * takes its share with it.
+ */
+class Stats implements Stmt.Visitor<Integer>, Expr.Visitor<Integer> {
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static class Phase {
+        final String name;
+        long wall;
+        long allocated;
+        // bytes each thread had allocated when the phase began
+        Map<Long, Long> baseline;
+
+        Phase(String name) {
+            this.name = name;
+        }
+    }
+
+    private final List<Phase> phases = new ArrayList<>();
+    private Phase current;
+    private PhaseEvent event;
+
+    int tokens;
+    int nodes;
+    long routineCalls;
+    int peakEnvironmentDepth;
+
+    void begin(String name) {
+        current = new Phase(name);
+        phases.add(current);
+        event = PhaseEvent.start(name);
+        current.baseline = allocatedBytes();
+        current.wall = System.nanoTime();
+    }
+
+    /**
+     * Closes the phase opened by the last {@link #begin}; {@code items} is
+     * what it produced or processed, for the JFR event.
+     */
+    void end(int items) {
+        current.wall = System.nanoTime() - current.wall;
+        for (Map.Entry<Long, Long> thread : allocatedBytes().entrySet()) {
+            current.allocated += thread.getValue() - current.baseline.getOrDefault(thread.getKey(), 0L);
+        }
+        current.baseline = null;
+        event.finish(items);
+        current = null;
+        event = null;
+    }
+
+    private static Map<Long, Long> allocatedBytes() {
+        long[] ids = threads.getAllThreadIds();
+        long[] bytes = threads.getThreadAllocatedBytes(ids);
+        Map<Long, Long> allocated = new HashMap<>();
+        for (int i = 0; i < ids.length; i++) {
+            // -1 for a thread that ended between the two calls
+            if (bytes[i] >= 0) allocated.put(ids[i], bytes[i]);
+        }
+        return allocated;
+    }
+
+    /**
+     * Counts AST nodes. Bodies that a lazy parse has not parsed yet count
+     * as nothing, so the number reflects what is actually in memory.
+     */
+    void countNodes(List<Stmt> statements) {
+        nodes += countStatements(statements);
+    }
+
+    String toJson() {
+        StringBuilder json = new StringBuilder();
+        long wall = 0;
+        long allocated = 0;
+
+        json.append("{\"phases\":[");
+        for (int i = 0; i < phases.size(); i++) {
+            Phase phase = phases.get(i);
+            if (i > 0) json.append(',');
+            json.append("{\"name\":\"").append(phase.name)
+                    .append("\",\"wallNanos\":").append(phase.wall)
+                    .append(",\"allocatedBytes\":").append(phase.allocated)
+                    .append('}');
+            wall += phase.wall;
+            allocated += phase.allocated;
+        }
+        json.append("],\"wallNanos\":").append(wall)
+                .append(",\"allocatedBytes\":").append(allocated)
+                .append(",\"tokens\":").append(tokens)
+                .append(",\"nodes\":").append(nodes)
+                .append(",\"routineCalls\":").append(routineCalls)
+                .append(",\"peakEnvironmentDepth\":").append(peakEnvironmentDepth)
+                .append(",\"passes\":").append(PassManager.toJson())
+                .append('}');
+        return json.toString();
+    }
+
+    private int countStatements(List<Stmt> statements) {
+        int count = 0;
+        for (Stmt statement : statements) {
+            count += count(statement);
+        }
+        return count;
+    }
+
+    private int countExpressions(List<Expr> expressions) {
+        int count = 0;
+        for (Expr expression : expressions) {
+            count += count(expression);
+        }
+        return count;
+    }
+
+    private int count(Stmt statement) {
+        return statement == null ? 0 : statement.accept(this);
+    }
+
+    private int count(Expr expression) {
+        return expression == null ? 0 : expression.accept(this);
+    }
+
+    @Override
+    public Integer visitArrayStmt(Stmt.Array stmt) {
+        return 1 + countExpressions(stmt.members);
+    }
+
+    @Override
+    public Integer visitBodyStmt(Stmt.Body stmt) {
+        return 1 + countStatements(stmt.statements);
+    }
+
+    @Override
+    public Integer visitExpressionStmt(Stmt.Expression stmt) {
+        return 1 + count(stmt.expression);
+    }
+
+    @Override
+    public Integer visitRoutineStmt(Stmt.Routine stmt) {
+        return 1 + (stmt.isBodyParsed() ? countStatements(stmt.body()) : 0);
+    }
+
+    @Override
+    public Integer visitRangeStmt(Stmt.Range stmt) {
+        return 1 + count(stmt.from) + count(stmt.to);
+    }
+
+    @Override
+    public Integer visitForStmt(Stmt.For stmt) {
+        return 1 + count(stmt.range) + count(stmt.body);
+    }
+
+    @Override
+    public Integer visitIfStmt(Stmt.If stmt) {
+        return 1 + count(stmt.condition) + count(stmt.thenBranch) + count(stmt.elseBranch);
+    }
+
+    @Override
+    public Integer visitPrintStmt(Stmt.Print stmt) {
+        return 1 + count(stmt.expression);
+    }
+
+    @Override
+    public Integer visitRecordStmt(Stmt.Record stmt) {
+        int count = 1;
+        for (Stmt.Var field : stmt.fields) {
+            count += count(field);
+        }
+        return count;
+    }
+
+    @Override
+    public Integer visitReturnStmt(Stmt.Return stmt) {
+        return 1 + count(stmt.value);
+    }
+
+    @Override
+    public Integer visitTypeDeclareStmt(Stmt.TypeDeclare stmt) {
+        return 1;
+    }
+
+    @Override
+    public Integer visitVarStmt(Stmt.Var stmt) {
+        return 1 + count(stmt.initializer);
+    }
+
+    @Override
+    public Integer visitWhileStmt(Stmt.While stmt) {
+        return 1 + count(stmt.condition) + count(stmt.body);
+    }
+
+    @Override
+    public Integer visitAssignExpr(Expr.Assign expr) {
+        return 1 + count(expr.value);
+    }
+
+    @Override
+    public Integer visitBinaryExpr(Expr.Binary expr) {
+        return 1 + count(expr.left) + count(expr.right);
+    }
+
+    @Override
+    public Integer visitCallExpr(Expr.Call expr) {
+        return 1 + count(expr.callee) + countExpressions(expr.arguments);
+    }
+
+    @Override
+    public Integer visitGetExpr(Expr.Get expr) {
+        return 1 + count(expr.record);
+    }
+
+    @Override
+    public Integer visitGetIndexExpr(Expr.GetIndex expr) {
+        return 1 + count(expr.array);
+    }
+
+    @Override
+    public Integer visitGroupingExpr(Expr.Grouping expr) {
+        return 1 + count(expr.expression);
+    }
+
+    @Override
+    public Integer visitLiteralExpr(Expr.Literal expr) {
+        return 1;
+    }
+
+    @Override
+    public Integer visitLogicalExpr(Expr.Logical expr) {
+        return 1 + count(expr.left) + count(expr.right);
+    }
+
+    @Override
+    public Integer visitUnaryExpr(Expr.Unary expr) {
+        return 1 + count(expr.right);
+    }
+
+    @Override
+    public Integer visitVariableExpr(Expr.Variable expr) {
+        return 1;
+    }
+}
@@ -1,6 +1,8 @@
 package com.imperative;
 
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 abstract class Stmt {
     abstract <R> R accept(Visitor<R> visitor);
@@ -75,8 +77,9 @@ abstract class Stmt {
         final Token name;
         final List<Token> params;
         final List<Type> types;
-        final List<Stmt> body;
         final Type returnType;
+        private volatile List<Stmt> body;
+        private Supplier<List<Stmt>> deferredBody;
 
         Routine(Token name, List<Token> params, List<Type> types, List<Stmt> body, Type returnType) {
             this.name = name;
@@ -86,6 +89,37 @@ abstract class Stmt {
             this.returnType = returnType;
         }
 
+        Routine(Token name, List<Token> params, List<Type> types,
+                Supplier<List<Stmt>> deferredBody, Type returnType) {
+            this.name = name;
+            this.params = params;
+            this.types = types;
+            this.deferredBody = deferredBody;
+            this.returnType = returnType;
+        }
+
+        /**
+         * The routine's statements, parsed on first use when the parser
+         * only skipped over them.
+         */
+        List<Stmt> body() {
+            List<Stmt> statements = body;
+            if (statements == null) {
+                synchronized (this) {
+                    if (body == null) {
+                        body = deferredBody.get();
+                        deferredBody = null;
+                    }
+                    statements = body;
+                }
+            }
+            return statements;
+        }
+
+        boolean isBodyParsed() {
+            return body != null;
+        }
+
         <R> R accept(Visitor<R> visitor) {
             return visitor.visitRoutineStmt(this);
         }
@@ -105,7 +139,18 @@ abstract class Stmt {
         }
     }
 
-    static class For extends Stmt {
+    /**
+     * A statement that jumps back to its start, numbered so an evaluator
+     * can keep what it knows about the loop in an array.
+     */
+    abstract static class Loop extends Stmt {
+        // parsers on several threads create loops at once
+        private static final AtomicInteger count = new AtomicInteger();
+
+        final int slot = count.getAndIncrement();
+    }
+
+    static class For extends Loop {
         final Token name;
         final boolean reverse;
         final Range range;
@@ -209,7 +254,7 @@ abstract class Stmt {
         }
     }
 
-    static class While extends Stmt {
+    static class While extends Loop {
         final Expr condition;
         final Stmt body;
 
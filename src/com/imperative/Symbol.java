@@ -0,0 +1,39 @@
+package com.imperative;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An interned identifier. There is exactly one Symbol per distinct name,
+ * so symbols compare by identity and hash by their integer id.
+ */
+final class Symbol {
+    private static final ConcurrentMap<String, Symbol> table = new ConcurrentHashMap<>();
+    private static final AtomicInteger nextId = new AtomicInteger();
+
+    final String name;
+    final int id;
+
+    private Symbol(String name, int id) {
+        this.name = name;
+        this.id = id;
+    }
+
+    static Symbol intern(String name) {
+        Symbol symbol = table.get(name);
+        if (symbol != null) return symbol;
+
+        return table.computeIfAbsent(name, key -> new Symbol(key, nextId.getAndIncrement()));
+    }
+
+    @Override
+    public int hashCode() {
+        return id;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
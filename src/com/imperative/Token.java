@@ -5,12 +5,19 @@ class Token {
     final String lexeme;
     final Object literal;
     final int line;
+    // set for identifiers only
+    final Symbol symbol;
 
     Token(TokenType type, String lexeme, Object literal, int line) {
+        this(type, lexeme, literal, line, type == TokenType.IDENTIFIER ? Symbol.intern(lexeme) : null);
+    }
+
+    Token(TokenType type, String lexeme, Object literal, int line, Symbol symbol) {
         this.type = type;
         this.lexeme = lexeme;
         this.literal = literal;
         this.line = line;
+        this.symbol = symbol;
     }
 
 
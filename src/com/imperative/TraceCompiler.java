@@ -0,0 +1,378 @@
+package com.imperative;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles one recorded iteration of a hot loop into a straight-line trace.
+ * While recording, the Evaluator notes which way every if went and which
+ * operand types every binary operator saw. The trace follows the recorded
+ * branches only, with a guard in place of each if and a type check in
+ * front of each typed operator. A failing guard is a side exit: the
+ * Evaluator reruns the statement it failed in and finishes the iteration.
+ * Guards always fail before their statement's own side effect, which is
+ * what makes rerunning it safe.
+ */
+class TraceCompiler extends ClosureCompiler {
+    // side exits after which a trace that keeps failing is dropped
+    private static final int EXIT_LIMIT = 64;
+
+    /**
+     * What one interpreted iteration of a loop did.
+     */
+    static class Recording {
+        final Stmt.Loop loop;
+        final Evaluator.LoopState state;
+        final Map<Expr.Binary, Class<?>[]> operands = new IdentityHashMap<>();
+        final Map<Stmt.If, Boolean> branches = new IdentityHashMap<>();
+
+        Recording(Stmt.Loop loop, Evaluator.LoopState state) {
+            this.loop = loop;
+            this.state = state;
+        }
+
+        void binary(Expr.Binary expr, Object left, Object right) {
+            operands.put(expr, new Class<?>[]{classOf(left), classOf(right)});
+        }
+
+        void branch(Stmt.If stmt, boolean taken) {
+            branches.put(stmt, taken);
+        }
+
+        private static Class<?> classOf(Object value) {
+            return value == null ? null : value.getClass();
+        }
+    }
+
+    private static class SideExit extends RuntimeException {
+        static final SideExit INSTANCE = new SideExit();
+
+        private SideExit() {
+            super(null, null, false, false);
+        }
+    }
+
+    // thrown while compiling, the loop then gets plain compiled code
+    private static class Untraceable extends RuntimeException {
+        Untraceable() {
+            super(null, null, false, false);
+        }
+    }
+
+    private interface IntegerOperator {
+        Object apply(int left, int right);
+    }
+
+    private interface RealOperator {
+        Object apply(double left, double right);
+    }
+
+    private final Recording recording;
+    private final List<Action> steps = new ArrayList<>();
+    // per step, the statement to rerun on a side exit and where the body goes on after it
+    private final List<Stmt> origins = new ArrayList<>();
+    private final List<Integer> resumes = new ArrayList<>();
+
+    TraceCompiler(Evaluator evaluator, Recording recording) {
+        super(evaluator);
+        this.recording = recording;
+    }
+
+    /**
+     * The rest of the recorded loop, entered at a back edge like
+     * {@link ClosureCompiler#backEdge}, which also serves when the loop
+     * cannot be traced or its trace is dropped.
+     */
+    LoopEntry compile() {
+        LoopEntry fallback = new ClosureCompiler(evaluator).backEdge(recording.loop);
+        try {
+            return trace(fallback);
+        } catch (Untraceable e) {
+            return fallback;
+        }
+    }
+
+    private LoopEntry trace(LoopEntry fallback) {
+        Stmt.Loop loop = recording.loop;
+        Stmt body = loop instanceof Stmt.While ? ((Stmt.While) loop).body : ((Stmt.For) loop).body;
+        boolean scoped = body instanceof Stmt.Body;
+        List<Stmt> statements = scoped ? ((Stmt.Body) body).statements : List.of(body);
+
+        for (int i = 0; i < statements.size(); i++) {
+            record(statements.get(i), i + 1);
+        }
+
+        Trace trace = new Trace(recording.state, statements, scoped, fallback);
+        if (loop instanceof Stmt.While) {
+            Expr test = ((Stmt.While) loop).condition;
+            Code condition = compile(test);
+            return (environment, from, to) -> {
+                while (trace.test(condition, test, environment)) {
+                    if (!trace.iterate(environment)) {
+                        fallback.run(environment, 0, 0);
+                        return;
+                    }
+                }
+            };
+        }
+
+        Stmt.For stmt = (Stmt.For) loop;
+        Token name = stmt.name;
+        if (stmt.reverse) {
+            return (environment, from, to) -> {
+                environment.assign(name, --from);
+                while (from > to) {
+                    if (!trace.iterate(environment)) {
+                        fallback.run(environment, from, to);
+                        return;
+                    }
+                    environment.assign(name, --from);
+                }
+            };
+        }
+
+        return (environment, from, to) -> {
+            environment.assign(name, ++from);
+            while (from < to) {
+                if (!trace.iterate(environment)) {
+                    fallback.run(environment, from, to);
+                    return;
+                }
+                environment.assign(name, ++from);
+            }
+        };
+    }
+
+    private void record(Stmt statement, int resume) {
+        if (statement instanceof Stmt.If) {
+            Stmt.If stmt = (Stmt.If) statement;
+            Boolean taken = recording.branches.get(stmt);
+            if (taken == null) throw new Untraceable();
+
+            Code condition = compile(stmt.condition);
+            boolean expected = taken;
+            step(environment -> {
+                if (Operators.isTruthy(condition.run(environment)) != expected) throw SideExit.INSTANCE;
+            }, stmt, resume);
+
+            Stmt path = expected ? stmt.thenBranch : stmt.elseBranch;
+            if (path != null) record(path, resume);
+            return;
+        }
+
+        step(compile(statement), statement, resume);
+    }
+
+    private void step(Action action, Stmt origin, int resume) {
+        steps.add(action);
+        origins.add(origin);
+        resumes.add(resume);
+    }
+
+    /**
+     * A compiled trace with its side exit bookkeeping. Only the
+     * interpreter thread runs it.
+     */
+    private class Trace {
+        private final Evaluator.LoopState state;
+        private final Action[] actions = steps.toArray(new Action[0]);
+        private final Stmt[] origin = origins.toArray(new Stmt[0]);
+        private final int[] resume = resumes.stream().mapToInt(Integer::intValue).toArray();
+        private final List<Stmt> statements;
+        private final boolean scoped;
+        private final LoopEntry fallback;
+        private long iterations;
+        private long exits;
+
+        Trace(Evaluator.LoopState state, List<Stmt> statements, boolean scoped, LoopEntry fallback) {
+            this.state = state;
+            this.statements = statements;
+            this.scoped = scoped;
+            this.fallback = fallback;
+        }
+
+        boolean test(Code condition, Expr test, Environment environment) {
+            try {
+                return Operators.isTruthy(condition.run(environment));
+            } catch (SideExit exit) {
+                exits++;
+                return Operators.isTruthy(evaluator.evaluateIn(test, environment));
+            }
+        }
+
+        /**
+         * Runs one iteration, and returns false once the trace has left
+         * through its side exits too often to be worth keeping.
+         */
+        boolean iterate(Environment environment) {
+            if (scoped) {
+                Environment block = new Environment(environment, evaluator.stack);
+                try {
+                    evaluator.executeCompiled(this::run, block);
+                } finally {
+                    block.release();
+                }
+            } else {
+                run(environment);
+            }
+
+            iterations++;
+            if (exits > EXIT_LIMIT && exits * 8 > iterations) {
+                state.osrEntry = fallback;
+                return false;
+            }
+            return true;
+        }
+
+        private void run(Environment environment) {
+            int step = 0;
+            try {
+                for (; step < actions.length; step++) {
+                    actions[step].run(environment);
+                }
+            } catch (SideExit exit) {
+                exits++;
+                evaluator.executeIn(origin[step], environment);
+                for (int i = resume[step]; i < statements.size(); i++) {
+                    evaluator.executeIn(statements.get(i), environment);
+                }
+            }
+        }
+    }
+
+    @Override
+    public Code visitBinaryExpr(Expr.Binary expr) {
+        Class<?>[] seen = recording.operands.get(expr);
+        if (seen == null || seen[0] != seen[1]) return super.visitBinaryExpr(expr);
+
+        Code left = compile(expr.left);
+        Code right = compile(expr.right);
+        if (seen[0] == Integer.class) {
+            switch (expr.operator.type) {
+                case GREATER:
+                    return integers(left, right, (a, b) -> a > b);
+                case GREATER_EQUAL:
+                    return integers(left, right, (a, b) -> a >= b);
+                case LESS:
+                    return integers(left, right, (a, b) -> a < b);
+                case LESS_EQUAL:
+                    return integers(left, right, (a, b) -> a <= b);
+                case SLASH_EQUAL:
+                    return integers(left, right, (a, b) -> a != b);
+                case EQUAL_EQUAL:
+                    return integers(left, right, (a, b) -> a == b);
+                case PLUS:
+                    return integers(left, right, (a, b) -> a + b);
+                case MINUS:
+                    return integers(left, right, (a, b) -> a - b);
+                case SLASH:
+                    return integers(left, right, (a, b) -> a / b);
+                case STAR:
+                    return integers(left, right, (a, b) -> a * b);
+            }
+        } else if (seen[0] == Double.class) {
+            switch (expr.operator.type) {
+                case GREATER:
+                    return reals(left, right, (a, b) -> a > b);
+                case GREATER_EQUAL:
+                    return reals(left, right, (a, b) -> a >= b);
+                case LESS:
+                    return reals(left, right, (a, b) -> a < b);
+                case LESS_EQUAL:
+                    return reals(left, right, (a, b) -> a <= b);
+                case PLUS:
+                    return reals(left, right, (a, b) -> a + b);
+                case MINUS:
+                    return reals(left, right, (a, b) -> a - b);
+                case SLASH:
+                    return reals(left, right, (a, b) -> a / b);
+                case STAR:
+                    return reals(left, right, (a, b) -> a * b);
+            }
+        }
+
+        return super.visitBinaryExpr(expr);
+    }
+
+    private static Code integers(Code left, Code right, IntegerOperator operator) {
+        return environment -> {
+            Object a = left.run(environment);
+            Object b = right.run(environment);
+            if (a instanceof Integer && b instanceof Integer) return operator.apply((int) a, (int) b);
+            throw SideExit.INSTANCE;
+        };
+    }
+
+    private static Code reals(Code left, Code right, RealOperator operator) {
+        return environment -> {
+            Object a = left.run(environment);
+            Object b = right.run(environment);
+            if (a instanceof Double && b instanceof Double) return operator.apply((double) a, (double) b);
+            throw SideExit.INSTANCE;
+        };
+    }
+
+    // calls, nested assignments and array reads may have side effects a guard could repeat
+
+    @Override
+    public Code visitAssignExpr(Expr.Assign expr) {
+        throw new Untraceable();
+    }
+
+    @Override
+    public Code visitCallExpr(Expr.Call expr) {
+        throw new Untraceable();
+    }
+
+    @Override
+    public Code visitGetIndexExpr(Expr.GetIndex expr) {
+        throw new Untraceable();
+    }
+
+    @Override
+    public Action visitExpressionStmt(Stmt.Expression stmt) {
+        if (!(stmt.expression instanceof Expr.Assign)) return super.visitExpressionStmt(stmt);
+
+        // the assignment itself is the statement's side effect, after any guard
+        Token name = ((Expr.Assign) stmt.expression).name;
+        Code value = compile(((Expr.Assign) stmt.expression).value);
+        return environment -> environment.assign(name, value.run(environment));
+    }
+
+    @Override
+    public Action visitArrayStmt(Stmt.Array stmt) {
+        throw new Untraceable();
+    }
+
+    @Override
+    public Action visitBodyStmt(Stmt.Body stmt) {
+        throw new Untraceable();
+    }
+
+    @Override
+    public Action visitRoutineStmt(Stmt.Routine stmt) {
+        throw new Untraceable();
+    }
+
+    @Override
+    public Action visitForStmt(Stmt.For stmt) {
+        throw new Untraceable();
+    }
+
+    @Override
+    public Action visitRecordStmt(Stmt.Record stmt) {
+        throw new Untraceable();
+    }
+
+    @Override
+    public Action visitTypeDeclareStmt(Stmt.TypeDeclare stmt) {
+        throw new Untraceable();
+    }
+
+    @Override
+    public Action visitWhileStmt(Stmt.While stmt) {
+        throw new Untraceable();
+    }
+}
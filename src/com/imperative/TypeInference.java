@@ -0,0 +1,59 @@
+package com.imperative;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Gives every instruction the type of what it computes. Starts from
+ * nothing known and only ever widens, so a loop-carried value stays an
+ * integer as long as every assignment reaching it does.
+ */
+class TypeInference implements IrPass {
+    @Override
+    public String name() {
+        return "types";
+    }
+
+    @Override
+    public boolean run(Ir.Function function) {
+        Map<Ir.Instruction, Ir.ValueType> before = new HashMap<>();
+        for (Ir.Block block : function.blocks) {
+            for (Ir.Phi phi : block.phis) {
+                before.put(phi, phi.type);
+                phi.type = null;
+            }
+            for (Ir.Instruction instruction : block.instructions) {
+                before.put(instruction, instruction.type);
+                instruction.type = null;
+            }
+        }
+
+        boolean changed;
+        do {
+            changed = false;
+            for (Ir.Block block : function.blocks) {
+                for (Ir.Phi phi : block.phis) {
+                    changed |= widen(phi);
+                }
+                for (Ir.Instruction instruction : block.instructions) {
+                    changed |= widen(instruction);
+                }
+            }
+        } while (changed);
+
+        for (Map.Entry<Ir.Instruction, Ir.ValueType> entry : before.entrySet()) {
+            if (entry.getKey().type != entry.getValue()) return true;
+        }
+        return false;
+    }
+
+    private static boolean widen(Ir.Instruction instruction) {
+        Ir.ValueType inferred = instruction.infer();
+        if (inferred == null) return false;
+
+        Ir.ValueType type = instruction.type == null ? inferred : instruction.type.join(inferred);
+        if (type == instruction.type) return false;
+        instruction.type = type;
+        return true;
+    }
+}
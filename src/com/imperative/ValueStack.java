@@ -0,0 +1,39 @@
+package com.imperative;
+
+import java.util.Arrays;
+
+/**
+ * The variables of every environment below the globals, one evaluator's
+ * worth, in arrays that only grow. An environment owns the window of
+ * slots from where the top was when it was made, and gives them back
+ * when its block or routine is left. Blocks and calls nest and nothing
+ * keeps an environment past its exit, so only the topmost window ever
+ * gets new variables and the windows come back in reverse order.
+ */
+class ValueStack {
+    Symbol[] names = new Symbol[64];
+    Object[] values = new Object[64];
+    Type[] types = new Type[64];
+    int top = 0;
+
+    void push(Symbol name, Object value, Type type) {
+        if (top == names.length) {
+            names = Arrays.copyOf(names, top * 2);
+            values = Arrays.copyOf(values, top * 2);
+            types = Arrays.copyOf(types, top * 2);
+        }
+        names[top] = name;
+        values[top] = value;
+        types[top] = type;
+        top++;
+    }
+
+    /**
+     * Drops everything from the slot on, letting go of the values.
+     */
+    void popTo(int slot) {
+        Arrays.fill(values, slot, top, null);
+        Arrays.fill(types, slot, top, null);
+        top = slot;
+    }
+}
@@ -0,0 +1,173 @@
+package com.imperative;
+
+import java.util.List;
+
+/**
+ * Base for analyses that only read the tree: visits every node of a
+ * routine body once, without entering nested routine bodies, which run
+ * in their own environment.
+ */
+class Walker implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+    void block(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            walk(statement);
+        }
+    }
+
+    void walk(Stmt statement) {
+        if (statement != null) statement.accept(this);
+    }
+
+    void walk(Expr expr) {
+        if (expr != null) expr.accept(this);
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        walk(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        walk(expr.left);
+        walk(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        walk(expr.callee);
+        for (Expr argument : expr.arguments) {
+            walk(argument);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        walk(expr.record);
+        return null;
+    }
+
+    @Override
+    public Void visitGetIndexExpr(Expr.GetIndex expr) {
+        walk(expr.array);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        walk(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        walk(expr.left);
+        walk(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        walk(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitArrayStmt(Stmt.Array stmt) {
+        for (Expr member : stmt.members) {
+            walk(member);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBodyStmt(Stmt.Body stmt) {
+        block(stmt.statements);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        walk(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitRoutineStmt(Stmt.Routine stmt) {
+        return null;
+    }
+
+    @Override
+    public Void visitRangeStmt(Stmt.Range stmt) {
+        walk(stmt.from);
+        walk(stmt.to);
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        walk(stmt.range);
+        walk(stmt.body);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        walk(stmt.condition);
+        walk(stmt.thenBranch);
+        walk(stmt.elseBranch);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        walk(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitRecordStmt(Stmt.Record stmt) {
+        for (Stmt.Var field : stmt.fields) {
+            walk(field);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        walk(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitTypeDeclareStmt(Stmt.TypeDeclare stmt) {
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        walk(stmt.initializer);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        walk(stmt.condition);
+        walk(stmt.body);
+        return null;
+    }
+}